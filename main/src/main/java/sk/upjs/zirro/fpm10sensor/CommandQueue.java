@@ -0,0 +1,199 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of commands executed by a single I/O thread. The thread is started
+ * when a command is submitted and it terminates after a period without
+ * commands.
+ */
+class CommandQueue {
+
+	/**
+	 * Queued command.
+	 */
+	private static final class Command {
+
+		/**
+		 * The task realizing the command.
+		 */
+		final Runnable task;
+
+		/**
+		 * Indicates whether the command is a long-running activity.
+		 */
+		final boolean activity;
+
+		/**
+		 * Constructs a queued command.
+		 *
+		 * @param task
+		 *            the task realizing the command.
+		 * @param activity
+		 *            true, if the command is a long-running activity.
+		 */
+		Command(Runnable task, boolean activity) {
+			this.task = task;
+			this.activity = activity;
+		}
+	}
+
+	/**
+	 * Milliseconds after which an idle I/O thread terminates.
+	 */
+	private static final long KEEP_ALIVE_TIME = 60_000;
+
+	/**
+	 * The name of the I/O thread.
+	 */
+	private final String threadName;
+
+	/**
+	 * Queued commands (guarded by this).
+	 */
+	private final LinkedList<Command> commands = new LinkedList<>();
+
+	/**
+	 * The I/O thread or null, if the thread is not running (guarded by this).
+	 */
+	private Thread ioThread = null;
+
+	/**
+	 * Number of queued and running commands (guarded by this).
+	 */
+	private int pendingCount = 0;
+
+	/**
+	 * Constructs a command queue.
+	 *
+	 * @param threadName
+	 *            the name of the I/O thread.
+	 */
+	public CommandQueue(String threadName) {
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Submits a command for execution by the I/O thread.
+	 *
+	 * @param task
+	 *            the task realizing the command.
+	 * @param activity
+	 *            true, if the command is a long-running activity, false for a
+	 *            command that can be executed while an activity waits.
+	 */
+	public synchronized void submit(Runnable task, boolean activity) {
+		commands.add(new Command(task, activity));
+		pendingCount++;
+
+		if (ioThread == null) {
+			ioThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					processCommands();
+				}
+			}, threadName);
+			ioThread.setDaemon(true);
+			ioThread.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the number of queued and running commands.
+	 *
+	 * @return the number of pending commands.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Returns whether the current thread is the I/O thread.
+	 *
+	 * @return true, if the method is invoked by the I/O thread, false
+	 *         otherwise.
+	 */
+	public synchronized boolean isIoThread() {
+		return Thread.currentThread() == ioThread;
+	}
+
+	/**
+	 * Executes the first queued command that is not an activity. The method is
+	 * invoked by the I/O thread while a running activity waits.
+	 *
+	 * @return true, if a command has been executed, false if no such command
+	 *         is queued.
+	 */
+	public boolean executeCommand() {
+		Command command = null;
+		synchronized (this) {
+			Iterator<Command> it = commands.iterator();
+			while (it.hasNext()) {
+				Command queuedCommand = it.next();
+				if (!queuedCommand.activity) {
+					it.remove();
+					command = queuedCommand;
+					break;
+				}
+			}
+		}
+
+		if (command == null) {
+			return false;
+		}
+
+		execute(command);
+		return true;
+	}
+
+	/**
+	 * Processes commands in the I/O thread.
+	 */
+	private void processCommands() {
+		while (true) {
+			Command command;
+			synchronized (this) {
+				long endTime = System.nanoTime() + KEEP_ALIVE_TIME * 1_000_000;
+				while (commands.isEmpty()) {
+					long remainingTime = endTime - System.nanoTime();
+					if (remainingTime <= 0) {
+						ioThread = null;
+						return;
+					}
+
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, remainingTime);
+					} catch (InterruptedException ignore) {
+
+					}
+				}
+
+				command = commands.removeFirst();
+			}
+
+			execute(command);
+		}
+	}
+
+	/**
+	 * Executes a command.
+	 *
+	 * @param command
+	 *            the command.
+	 */
+	private void execute(Command command) {
+		try {
+			command.task.run();
+		} catch (Throwable ignore) {
+			// tasks report their failures themselves
+		} finally {
+			synchronized (this) {
+				pendingCount--;
+			}
+		}
+	}
+}
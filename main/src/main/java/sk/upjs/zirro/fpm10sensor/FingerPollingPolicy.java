@@ -0,0 +1,108 @@
+package sk.upjs.zirro.fpm10sensor;
+
+/**
+ * Policy for polling the sensor while waiting for a finger to be put on or
+ * removed from the sensor.
+ *
+ * Within the fast polling window after the waiting starts (usually right
+ * after the human has been prompted), the sensor is polled with the base
+ * polling interval. Afterwards, the interval is doubled after each poll up to
+ * the max polling interval.
+ */
+public final class FingerPollingPolicy {
+
+    /**
+     * The base interval between two polls in milliseconds.
+     */
+    private final long pollingInterval;
+
+    /**
+     * The max interval between two polls in milliseconds.
+     */
+    private final long maxPollingInterval;
+
+    /**
+     * The period after the waiting starts when the sensor is polled with the
+     * base polling interval (in milliseconds).
+     */
+    private final long fastPollingWindow;
+
+    /**
+     * The max duration of waiting in milliseconds, 0 for unlimited waiting.
+     */
+    private final long deadline;
+
+    /**
+     * Indicates whether the sensor is released for other commands between two
+     * polls.
+     */
+    private final boolean yieldingBetweenPolls;
+
+    /**
+     * Constructs a polling policy.
+     *
+     * @param pollingInterval the base interval between two polls in
+     * milliseconds.
+     * @param maxPollingInterval the max interval between two polls in
+     * milliseconds.
+     * @param fastPollingWindow the period after the waiting starts when the
+     * sensor is polled with the base polling interval (in milliseconds).
+     * @param deadline the max duration of waiting in milliseconds, 0 for
+     * unlimited waiting.
+     * @param yieldingBetweenPolls true, if the sensor is released for other
+     * commands between two polls. The sensor is released only while no char
+     * buffer holds features of the waiting workflow and long-running jobs are
+     * not executed between polls.
+     */
+    public FingerPollingPolicy(long pollingInterval, long maxPollingInterval, long fastPollingWindow, long deadline,
+            boolean yieldingBetweenPolls) {
+        if ((pollingInterval < 0) || (maxPollingInterval < pollingInterval) || (fastPollingWindow < 0)
+                || (deadline < 0)) {
+            throw new IllegalArgumentException("Invalid polling intervals.");
+        }
+
+        this.pollingInterval = pollingInterval;
+        this.maxPollingInterval = maxPollingInterval;
+        this.fastPollingWindow = fastPollingWindow;
+        this.deadline = deadline;
+        this.yieldingBetweenPolls = yieldingBetweenPolls;
+    }
+
+    /**
+     * @return the base interval between two polls in milliseconds.
+     */
+    public long getPollingInterval() {
+        return pollingInterval;
+    }
+
+    /**
+     * @return the max interval between two polls in milliseconds.
+     */
+    public long getMaxPollingInterval() {
+        return maxPollingInterval;
+    }
+
+    /**
+     * @return the period after the waiting starts when the sensor is polled
+     * with the base polling interval (in milliseconds).
+     */
+    public long getFastPollingWindow() {
+        return fastPollingWindow;
+    }
+
+    /**
+     * @return the max duration of waiting in milliseconds, 0 for unlimited
+     * waiting.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true, if the sensor is released for other commands between two
+     * polls.
+     */
+    public boolean isYieldingBetweenPolls() {
+        return yieldingBetweenPolls;
+    }
+}
@@ -0,0 +1,235 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable fingerprint image in the format sent by the sensor: 288 rows of
+ * 256 pixels, each pixel is a 4-bit gray level and two consecutive pixels are
+ * packed in one byte (the first pixel in the upper nibble). Pixel values are
+ * reported as 8-bit gray levels with the gray level in the upper 4 bits.
+ */
+public final class FingerprintImage {
+
+    /**
+     * The width of the image in pixels.
+     */
+    public static final int WIDTH = 256;
+
+    /**
+     * The height of the image in pixels.
+     */
+    public static final int HEIGHT = 288;
+
+    /**
+     * The number of bytes of packed pixels.
+     */
+    public static final int PACKED_LENGTH = WIDTH * HEIGHT / 2;
+
+    /**
+     * The color model of 16 gray levels.
+     */
+    private static final IndexColorModel GRAY_LEVELS;
+
+    static {
+        byte[] levels = new byte[16];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = (byte) (i << 4);
+        }
+        GRAY_LEVELS = new IndexColorModel(4, levels.length, levels, levels, levels);
+    }
+
+    /**
+     * The packed pixels, never modified.
+     */
+    private final byte[] packedPixels;
+
+    /**
+     * Constructs an image that takes ownership of given packed pixels.
+     *
+     * @param packedPixels the packed pixels.
+     */
+    FingerprintImage(byte[] packedPixels) {
+        if (packedPixels.length != PACKED_LENGTH) {
+            throw new IllegalArgumentException("Image data must contain " + PACKED_LENGTH + " bytes.");
+        }
+
+        this.packedPixels = packedPixels;
+    }
+
+    /**
+     * Creates an image from a copy of packed pixels.
+     *
+     * @param packedPixels the packed pixels, two pixels per byte.
+     * @return the image.
+     */
+    public static FingerprintImage fromPackedPixels(byte[] packedPixels) {
+        return new FingerprintImage(packedPixels.clone());
+    }
+
+    /**
+     * Creates an image from a buffer of packed pixels. The pixels are read
+     * from the current position of the buffer.
+     *
+     * @param buffer the buffer with packed pixels, two pixels per byte.
+     * @return the image.
+     */
+    public static FingerprintImage fromPackedPixels(ByteBuffer buffer) {
+        byte[] packedPixels = new byte[PACKED_LENGTH];
+        buffer.get(packedPixels);
+        return new FingerprintImage(packedPixels);
+    }
+
+    /**
+     * Creates an image from a fingerprint scan. Pixels are quantized to the
+     * nearest of 16 gray levels.
+     *
+     * @param scan the fingerprint scan with 288 rows of 256 pixels.
+     * @return the image.
+     */
+    public static FingerprintImage fromScan(int[][] scan) {
+        if ((scan.length != HEIGHT) || (scan[0].length != WIDTH)) {
+            throw new IllegalArgumentException("Image scan must contain " + HEIGHT + " rows of " + WIDTH + " pixels.");
+        }
+
+        byte[] packedPixels = new byte[PACKED_LENGTH];
+        int idx = 0;
+        for (int[] row : scan) {
+            for (int x = 0; x < WIDTH; x += 2) {
+                packedPixels[idx++] = (byte) ((quantize(row[x]) << 4) | quantize(row[x + 1]));
+            }
+        }
+
+        return new FingerprintImage(packedPixels);
+    }
+
+    /**
+     * Quantizes a gray level to 4 bits.
+     *
+     * @param pixel the gray level (0 - 255), out of range values are clamped.
+     * @return the nearest 4-bit gray level.
+     */
+    static int quantize(int pixel) {
+        if (pixel <= 0) {
+            return 0;
+        }
+
+        return Math.min((pixel + 8) >> 4, 15);
+    }
+
+    /**
+     * @return the width of the image in pixels.
+     */
+    public int getWidth() {
+        return WIDTH;
+    }
+
+    /**
+     * @return the height of the image in pixels.
+     */
+    public int getHeight() {
+        return HEIGHT;
+    }
+
+    /**
+     * Returns the gray level of a pixel.
+     *
+     * @param x the x-coordinate of the pixel.
+     * @param y the y-coordinate of the pixel.
+     * @return the gray level (0 - 255) with the value in the upper 4 bits.
+     */
+    public int getPixel(int x, int y) {
+        if ((x < 0) || (x >= WIDTH) || (y < 0) || (y >= HEIGHT)) {
+            throw new IndexOutOfBoundsException("Pixel [" + x + ", " + y + "] is outside the image.");
+        }
+
+        int packedByte = packedPixels[(y * WIDTH + x) >> 1];
+        return ((x & 1) == 0) ? (packedByte & 0xF0) : ((packedByte & 0x0F) << 4);
+    }
+
+    /**
+     * Returns gray levels of pixels in a row.
+     *
+     * @param y the y-coordinate of the row.
+     * @param row the array for gray levels of pixels, at least 256 elements.
+     * @return the array with gray levels.
+     */
+    public int[] getRow(int y, int[] row) {
+        if ((y < 0) || (y >= HEIGHT)) {
+            throw new IndexOutOfBoundsException("Row " + y + " is outside the image.");
+        }
+
+        int idx = y * WIDTH / 2;
+        for (int x = 0; x < WIDTH; x += 2) {
+            int packedByte = packedPixels[idx++];
+            row[x] = packedByte & 0xF0;
+            row[x + 1] = (packedByte & 0x0F) << 4;
+        }
+
+        return row;
+    }
+
+    /**
+     * @return the copy of packed pixels.
+     */
+    public byte[] getPackedPixels() {
+        return packedPixels.clone();
+    }
+
+    /**
+     * @return the read-only buffer of packed pixels that shares the content
+     * with the image.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(packedPixels).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the fingerprint scan with 288 rows of 256 pixels.
+     */
+    public int[][] toScan() {
+        int[][] scan = new int[HEIGHT][WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            getRow(y, scan[y]);
+        }
+
+        return scan;
+    }
+
+    /**
+     * Converts the image to a 4-bit gray image. The image is backed by a copy
+     * of packed pixels, so that pixels are not expanded.
+     *
+     * @return the buffered image.
+     */
+    public BufferedImage toBufferedImage() {
+        DataBufferByte dataBuffer = new DataBufferByte(packedPixels.clone(), PACKED_LENGTH);
+        MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(dataBuffer.getDataType(), WIDTH,
+                HEIGHT, 4);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+        return new BufferedImage(GRAY_LEVELS, raster, false, null);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FingerprintImage)) {
+            return false;
+        }
+
+        return Arrays.equals(packedPixels, ((FingerprintImage) obj).packedPixels);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(packedPixels);
+    }
+}
@@ -5,9 +5,17 @@ import jssc.SerialPortException;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class FingerprintSensor {
 
@@ -22,9 +30,10 @@ public class FingerprintSensor {
         final int type;
 
         /**
-         * Payload of the package.
+         * Payload of the package. It is a view into the receive frame that is
+         * valid until the next package is read.
          */
-        final int[] data;
+        final ByteBuffer data;
 
         /**
          * Constructs a received package.
@@ -32,10 +41,94 @@ public class FingerprintSensor {
          * @param type the package type.
          * @param data package data.
          */
-        Package(int type, int[] data) {
+        Package(int type, ByteBuffer data) {
             this.type = type;
             this.data = data;
         }
+
+        /**
+         * @return the length of the payload.
+         */
+        int length() {
+            return data.remaining();
+        }
+
+        /**
+         * Returns a byte of the payload.
+         *
+         * @param index the index of the byte.
+         * @return the byte (as unsigned integer).
+         */
+        int get(int index) {
+            return data.get(index) & 0xFF;
+        }
+    }
+
+    /**
+     * Consumer of data packages received after an acknowledged command.
+     */
+    private interface DataPackageConsumer {
+
+        /**
+         * Notifies about a received data package.
+         *
+         * @param receivedData the buffer with all data received so far.
+         * @param offset the position of the package data in the buffer.
+         * @param length the length of the package data.
+         */
+        void dataPackageReceived(byte[] receivedData, int offset, int length);
+    }
+
+    /**
+     * Assembler of image rows from data packages received during an image
+     * download. The download listener is notified about received pixels and
+     * completely received rows.
+     */
+    private static final class ImageRowAssembler implements DataPackageConsumer {
+
+        /**
+         * The listener notified about the download progress.
+         */
+        final ImageDownloadListener listener;
+
+        /**
+         * Gray levels of the row that is decoded.
+         */
+        final int[] row = new int[FingerprintImage.WIDTH];
+
+        /**
+         * The y-coordinate of the next row to decode.
+         */
+        int rowIdx;
+
+        /**
+         * Constructs an assembler of image rows.
+         *
+         * @param listener the listener notified about the download progress.
+         */
+        ImageRowAssembler(ImageDownloadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void dataPackageReceived(byte[] receivedData, int offset, int length) {
+            listener.imageDataReceived(ByteBuffer.wrap(receivedData, offset, length).slice().asReadOnlyBuffer(),
+                    offset);
+
+            // decode completely received rows
+            int rowLength = FingerprintImage.WIDTH / 2;
+            int receivedLength = offset + length;
+            while ((rowIdx < FingerprintImage.HEIGHT) && ((rowIdx + 1) * rowLength <= receivedLength)) {
+                int packedIdx = rowIdx * rowLength;
+                for (int x = 0; x < FingerprintImage.WIDTH; x += 2) {
+                    int packedByte = receivedData[packedIdx++];
+                    row[x] = packedByte & 0xF0;
+                    row[x + 1] = (packedByte & 0x0F) << 4;
+                }
+                listener.imageRowReceived(rowIdx, row);
+                rowIdx++;
+            }
+        }
     }
 
     /**
@@ -86,152 +179,204 @@ public class FingerprintSensor {
         /**
          * First fingerprint image.
          */
-        private final int[][] scan1;
+        private final FingerprintImage image1;
 
         /**
          * Second fingerprint image.
          */
-        private final int[][] scan2;
+        private final FingerprintImage image2;
 
         /**
          * Constructs a finger.
          *
          * @param features fingerprint features.
-         * @param scan1 fingerprint scan.
-         * @param scan2 fingerprint scan.
+         * @param image1 fingerprint image.
+         * @param image2 fingerprint image.
          */
-        FingerprintData(int[] features, int[][] scan1, int[][] scan2) {
+        FingerprintData(int[] features, FingerprintImage image1, FingerprintImage image2) {
             this.features = features;
-            this.scan1 = scan1;
-            this.scan2 = scan2;
+            this.image1 = image1;
+            this.image2 = image2;
         }
 
         public int[] getFeatures() {
             return features;
         }
 
+        public FingerprintImage getImage1() {
+            return image1;
+        }
+
+        public FingerprintImage getImage2() {
+            return image2;
+        }
+
+        /**
+         * @return the first image expanded to a new fingerprint scan.
+         */
         public int[][] getScan1() {
-            return scan1;
+            return image1.toScan();
         }
 
+        /**
+         * @return the second image expanded to a new fingerprint scan.
+         */
         public int[][] getScan2() {
-            return scan2;
+            return image2.toScan();
         }
     }
 
     /**
-     * Asynchronous activity with human interaction.
+     * Asynchronous activity with human interaction. The activity is a
+     * completable future, so that any number of dependent actions can be
+     * chained to it. The activity is completed only by the sensor: the methods
+     * that complete or obtrude the outcome throw an
+     * {@link UnsupportedOperationException} and cancellation completes the
+     * activity after its workflow has released the sensor.
      *
      * @param <T> the type of activity result.
      */
-    public static final class Activity<T> {
+    public static final class Activity<T> extends CompletableFuture<T> {
 
         /**
-         * Synchronization lock.
+         * Indicates that cancellation of the activity is requested.
          */
-        private final Object lock = new Object();
+        private volatile boolean cancellationRequested = false;
 
         /**
-         * Indicates whether the activity is completed (normally or cancelled).
+         * Requests cancellation of the activity. The activity completes with
+         * an exception as soon as the cancellation is noticed.
          */
-        private boolean done = false;
+        public void cancel() {
+            cancellationRequested = true;
+        }
 
         /**
-         * The runnable executed when the activity is done.
+         * Requests cancellation of the activity. The activity is not completed
+         * immediately, since its workflow can still use the sensor. The
+         * activity completes with a {@link CancellationException} as soon as
+         * the cancellation is noticed and the workflow has released the
+         * sensor.
+         *
+         * @param mayInterruptIfRunning ignored, the workflow is never
+         * interrupted.
+         * @return true, if the cancellation has been requested for an activity
+         * that is not done, false otherwise.
          */
-        private Runnable doneHandler = null;
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancellationRequested = true;
+            return !isDone();
+        }
 
         /**
-         * Result of the activity.
+         * The activity cannot be completed by callers.
+         *
+         * @throws UnsupportedOperationException always.
          */
-        private T result;
+        @Override
+        public boolean complete(T value) {
+            throw new UnsupportedOperationException("Activity is completed by the sensor.");
+        }
 
         /**
-         * Catched throwable.
+         * The activity cannot be completed by callers.
+         *
+         * @throws UnsupportedOperationException always.
          */
-        private Throwable catchedThrowable;
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            throw new UnsupportedOperationException("Activity is completed by the sensor.");
+        }
 
         /**
-         * Indicates that cancellation of the activity is requested.
+         * The outcome of the activity cannot be set by callers.
+         *
+         * @throws UnsupportedOperationException always.
          */
-        private volatile boolean cancellationRequested = false;
+        @Override
+        public void obtrudeValue(T value) {
+            throw new UnsupportedOperationException("Activity is completed by the sensor.");
+        }
 
         /**
-         * Cancels the activity.
+         * The outcome of the activity cannot be set by callers.
+         *
+         * @throws UnsupportedOperationException always.
          */
-        public void cancel() {
-            cancellationRequested = true;
-        }
-
-        public boolean isDone() {
-            synchronized (lock) {
-                return done;
-            }
+        @Override
+        public void obtrudeException(Throwable ex) {
+            throw new UnsupportedOperationException("Activity is completed by the sensor.");
         }
 
+        /**
+         * @return the result of the activity, or null if the activity has not
+         * been completed normally.
+         */
         public T getResult() {
-            synchronized (lock) {
-                return result;
+            if (!isDone() || isCompletedExceptionally()) {
+                return null;
             }
+
+            return join();
         }
 
+        /**
+         * @return the exception that completed the activity, or null if the
+         * activity has not been completed exceptionally.
+         */
         public Throwable getException() {
-            synchronized (lock) {
-                return catchedThrowable;
+            if (!isCompletedExceptionally()) {
+                return null;
             }
+
+            try {
+                join();
+            } catch (CompletionException e) {
+                return e.getCause();
+            } catch (CancellationException e) {
+                return e;
+            }
+
+            return null;
         }
 
         public void waitForCompletion() throws InterruptedException {
-            synchronized (lock) {
-                if (!done) {
-                    lock.wait();
-                }
+            try {
+                get();
+            } catch (ExecutionException | CancellationException ignore) {
+
             }
         }
 
         public void waitForCompletion(long timeout) throws InterruptedException {
-            synchronized (lock) {
-                if (!done) {
-                    lock.wait(timeout);
-                }
+            try {
+                get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | CancellationException | TimeoutException ignore) {
+
             }
         }
 
-        public void setDoneHandler(Runnable handler) {
-            Runnable pendingHandler = null;
-            synchronized (lock) {
-                if (doneHandler != null) {
-                    throw new IllegalStateException("Done handler has been set.");
-                }
-
-                doneHandler = handler;
-                if (done) {
-                    pendingHandler = handler;
+        /**
+         * Adds a runnable executed when the activity is done. If the activity
+         * is already done, the runnable is executed immediately.
+         *
+         * @param handler the runnable.
+         */
+        public void setDoneHandler(final Runnable handler) {
+            whenComplete(new BiConsumer<T, Throwable>() {
+                @Override
+                public void accept(T result, Throwable throwable) {
+                    handler.run();
                 }
-            }
-
-            if (pendingHandler != null) {
-                pendingHandler.run();
-            }
+            });
         }
 
         private void setDone(T result, Throwable throwable) {
-            Runnable pendingHandler = null;
-            synchronized (lock) {
-                if (done) {
-                    throw new IllegalStateException("Activity has been completed.");
-                }
-
-                this.result = result;
-                this.catchedThrowable = throwable;
-                done = true;
-                pendingHandler = doneHandler;
-
-                lock.notifyAll();
-            }
-
-            if (pendingHandler != null) {
-                pendingHandler.run();
+            if (throwable != null) {
+                super.completeExceptionally(throwable);
+            } else {
+                super.complete(result);
             }
         }
     }
@@ -247,9 +392,35 @@ public class FingerprintSensor {
     private Activity<?> runningActivity = null;
 
     /**
-     * Executor for realizing asynchronous activities.
+     * Indicates whether char buffers hold features of a running workflow
+     * (guarded by lock). The sensor is not released for other commands while
+     * waiting for a finger, since any command can overwrite char buffers.
+     */
+    private boolean charBuffersHeld = false;
+
+    /**
+     * The thread running a workflow or null, if no workflow is running
+     * (guarded by lock). While a workflow waits for a finger, other threads
+     * can execute single commands, but not another workflow.
+     */
+    private Thread workflowThread = null;
+
+    /**
+     * Nesting depth of workflows run by the workflow thread (guarded by lock).
+     */
+    private int workflowDepth = 0;
+
+    /**
+     * Indicates whether the running workflow has released the sensor for
+     * other commands while waiting for a finger (guarded by lock).
+     */
+    private boolean workflowYielding = false;
+
+    /**
+     * Queue of commands and activities executed by the I/O thread of the
+     * sensor.
      */
-    private final Executor executor = Executors.newCachedThreadPool();
+    private final CommandQueue commandQueue;
 
     // -------------------------------------------------------------
     // Confirmation codes
@@ -462,6 +633,11 @@ public class FingerprintSensor {
      */
     private static final int IC_EMPTY_LIB = 0x0D;
 
+    /**
+     * Set system parameter.
+     */
+    private static final int IC_SET_SYSTEM_PARAM = 0x0E;
+
     /**
      * Read system parameters.
      */
@@ -477,6 +653,24 @@ public class FingerprintSensor {
      */
     private static final int IC_TEMPLATE_COUNT = 0x1D;
 
+    /**
+     * Read the index table of the fingerprint library.
+     */
+    private static final int IC_READ_INDEX_TABLE = 0x1F;
+
+    // -------------------------------------------------------------
+    // System parameters
+    // -------------------------------------------------------------
+    /**
+     * Baud rate control (N = 1 - 12, baud rate is 9600*N bps).
+     */
+    private static final int SP_BAUD_RATE_CONTROL = 4;
+
+    /**
+     * Data package length (N = 0 - 3, length is 32*2^N bytes).
+     */
+    private static final int SP_DATA_PACKAGE_LENGTH = 6;
+
     /**
      * The char file buffer 1.
      */
@@ -527,6 +721,30 @@ public class FingerprintSensor {
      */
     private long defaultTimeout = 2000;
 
+    /**
+     * The period without received bytes (in milliseconds) that confirms the
+     * end of a data transfer.
+     */
+    private static final long TRANSFER_QUIET_PERIOD = 20;
+
+    /**
+     * The max interval (in milliseconds) between checks of the command queue
+     * while an activity executed by the I/O thread waits for a finger.
+     */
+    private static final long QUEUE_CHECK_INTERVAL = 10;
+
+    /**
+     * The time (in milliseconds) given to the module to switch its baud rate
+     * before a handshake at the new baud rate.
+     */
+    private static final long BAUD_RATE_SETTLE_TIME = 50;
+
+    /**
+     * The number of handshakes at the new baud rate after the baud rate
+     * change.
+     */
+    private static final int BAUD_RATE_CHANGE_ATTEMPTS = 3;
+
     /**
      * The capacity of fingerprint Flash library.
      */
@@ -564,7 +782,100 @@ public class FingerprintSensor {
     /**
      * The prolog of each (sent or received) package.
      */
-    private final int[] packageProlog = new int[6];
+    private final byte[] packageProlog = new byte[6];
+
+    /**
+     * The length of package type, package length and checksum fields.
+     */
+    private static final int PACKAGE_FIELDS_LENGTH = 5;
+
+    /**
+     * The max length of payload of command packages.
+     */
+    private static final int MAX_COMMAND_LENGTH = 6;
+
+    /**
+     * Reusable frames for command packages indexed by payload length. A frame
+     * is written to the serial port as a whole array, so that each payload
+     * length requires a frame of exact length. Commands have only a few
+     * short payload lengths.
+     */
+    private final byte[][] commandFrames = new byte[MAX_COMMAND_LENGTH + 1][];
+
+    /**
+     * The maximal number of data packages sent by a single write to the serial
+     * port.
+     */
+    private static final int DATA_PACKAGES_PER_WRITE = 8;
+
+    /**
+     * Reusable frame for sending a batch of data packages.
+     */
+    private byte[] dataBatchFrame = new byte[0];
+
+    /**
+     * Reusable frame for received packages (package type, length, payload and
+     * checksum).
+     */
+    private byte[] receiveFrame = new byte[256 + PACKAGE_FIELDS_LENGTH];
+
+    /**
+     * The policy for polling the sensor while waiting for a finger.
+     */
+    private FingerPollingPolicy fingerPollingPolicy = new FingerPollingPolicy(50, 400, 3000, 0, false);
+
+    /**
+     * The first id of the hot range of the library searched first by tiered
+     * search.
+     */
+    private int hotRangeStart = 0;
+
+    /**
+     * The number of templates in the hot range of the library, 0 if the hot
+     * range is not set.
+     */
+    private int hotRangeCount = 0;
+
+    /**
+     * The time (in milliseconds) between confirmed removal of a finger and the
+     * next prompt to put the finger on the sensor.
+     */
+    private long fingerSettleTime = 500;
+
+    /**
+     * Indicates whether received bytes are delivered by serial port events
+     * (true) or the serial port is polled (false).
+     */
+    private boolean eventDrivenReceive = true;
+
+    /**
+     * The cached set of ids of stored templates, null if the index table has
+     * not been read yet.
+     */
+    private BitSet occupiedIds = null;
+
+    /**
+     * The set of ids returned by {@link #allocateFreeId(long)} that have not
+     * been used to store a template yet.
+     */
+    private final BitSet reservedIds = new BitSet();
+
+    /**
+     * The lowest id that can be free, i.e., all lower ids are occupied or
+     * reserved.
+     */
+    private int freeIdHint = 0;
+
+    /**
+     * The cache of templates keyed by their id in the module library.
+     */
+    private final TemplateCache templateCache = new TemplateCache(0);
+
+    /**
+     * Ids of templates loaded in char buffers (indexed by char buffer id), -1
+     * if a char buffer does not contain a stored template.
+     */
+    private final int[] charBufferTemplateIds = {-1, -1, -1};
 
     /**
      * Constructs the fingerprint sensor wrapper with physical sensor connected
@@ -577,6 +888,7 @@ public class FingerprintSensor {
         this.serialPort = new SerialPort(serialPort);
         this.serialPortName = serialPort;
         this.baudRate = baudrate;
+        this.commandQueue = new CommandQueue("FPM10 I/O (" + serialPort + ")");
     }
 
     /**
@@ -589,6 +901,20 @@ public class FingerprintSensor {
         this(serialPort, SerialPort.BAUDRATE_57600);
     }
 
+    /**
+     * Constructs the fingerprint sensor wrapper communicating via given serial
+     * port object, e.g., an emulated module in tests.
+     *
+     * @param serialPort the serial port.
+     * @param baudrate the baud rate of serial port.
+     */
+    FingerprintSensor(SerialPort serialPort, int baudrate) {
+        this.serialPort = serialPort;
+        this.serialPortName = serialPort.getPortName();
+        this.baudRate = baudrate;
+        this.commandQueue = new CommandQueue("FPM10 I/O (" + serialPortName + ")");
+    }
+
     /**
      * Returns the serial port.
      *
@@ -634,6 +960,34 @@ public class FingerprintSensor {
         return dataPackageLength;
     }
 
+    /**
+     * Sets the max length of the transferring data package. The setting is
+     * stored in the module and it is used by all subsequent data transfers
+     * (uploads and downloads of templates and images).
+     *
+     * @param length the max length of data package: 32, 64, 128 or 256 bytes.
+     * @throws FingerprintSensorException
+     */
+    public void setDataPackageLength(int length) throws FingerprintSensorException {
+        synchronized (lock) {
+            int value = -1;
+            for (int i = 0; i < 4; i++) {
+                if ((32 << i) == length) {
+                    value = i;
+                }
+            }
+
+            if (value < 0) {
+                throw new IllegalArgumentException("Data package length must be 32, 64, 128 or 256 bytes.");
+            }
+
+            setSystemParameter(SP_DATA_PACKAGE_LENGTH, value, defaultTimeout);
+            if (!readSystemParameters(defaultTimeout)) {
+                throw new FingerprintSensorException("Cannot read system parameters.");
+            }
+        }
+    }
+
     /**
      * @return the system identifier code.
      */
@@ -642,82 +996,539 @@ public class FingerprintSensor {
     }
 
     /**
-     * Opens connection to the sensor.
+     * @return true, if received bytes are delivered by serial port events,
+     * false if the serial port is polled.
      */
-    public void open() {
-        // try to open port
-        try {
-            serialPort.openPort();
-            serialPort.setParams(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-            serialPortReader = new SerialPortReader(serialPort, baudRate);
-        } catch (Exception e) {
-            try {
-                serialPortReader = null;
-                serialPort.closePort();
-            } catch (Exception ignore) {
+    public boolean isEventDrivenReceive() {
+        return eventDrivenReceive;
+    }
 
-            }
+    /**
+     * Sets the receive mode. In the event-driven mode, the received bytes are
+     * pushed to the reader by RXCHAR events of the serial port and waiting
+     * operations are woken up immediately. In the polling mode, the serial
+     * port is periodically read. The setting takes effect when the connection
+     * is opened.
+     *
+     * @param eventDrivenReceive true for the event-driven mode, false for the
+     * polling mode.
+     */
+    public void setEventDrivenReceive(boolean eventDrivenReceive) {
+        this.eventDrivenReceive = eventDrivenReceive;
+    }
 
-            throw new FingerprintSensorException("Opening of serial port failed.", e);
+    /**
+     * @return the policy for polling the sensor while waiting for a finger.
+     */
+    public FingerPollingPolicy getFingerPollingPolicy() {
+        synchronized (lock) {
+            return fingerPollingPolicy;
         }
+    }
 
-        updatePackageProlog();
-
-        // try handshake with sensor
-        try {
-            if (!verifyPassword(defaultTimeout)) {
-                throw new RuntimeException("Handshaking failed.");
-            }
-            if (!readSystemParameters(defaultTimeout)) {
-                throw new RuntimeException("Cannot read system parameters.");
-            }
+    /**
+     * Sets the policy for polling the sensor while waiting for a finger to be
+     * put on or removed from the sensor.
+     *
+     * @param fingerPollingPolicy the polling policy.
+     */
+    public void setFingerPollingPolicy(FingerPollingPolicy fingerPollingPolicy) {
+        if (fingerPollingPolicy == null) {
+            throw new NullPointerException("Polling policy cannot be null.");
+        }
 
-        } catch (Exception e) {
-            close();
-            throw new FingerprintSensorException("Handshaking with sensor failed.", e);
+        synchronized (lock) {
+            this.fingerPollingPolicy = fingerPollingPolicy;
         }
     }
 
     /**
-     * Closes connection to the sensor.
+     * @return the first id of the hot range of the library.
      */
-    public void close() {
-        if (serialPortReader == null) {
-            return;
+    public int getHotRangeStart() {
+        synchronized (lock) {
+            return hotRangeStart;
         }
+    }
 
+    /**
+     * @return the number of templates in the hot range of the library.
+     */
+    public int getHotRangeCount() {
+        synchronized (lock) {
+            return hotRangeCount;
+        }
+    }
+
+    /**
+     * Sets the hot range of the library. The hot range is searched first by
+     * tiered search, so that it should contain templates of frequent users.
+     * Ids of the hot range are not returned by {@link #allocateFreeId(long)}.
+     *
+     * @param startId the first id of the hot range.
+     * @param count the number of templates in the hot range, 0 to search the
+     * whole library at once.
+     */
+    public void setHotRange(int startId, int count) {
+        if ((startId < 0) || (count < 0)) {
+            throw new IllegalArgumentException("Invalid range of the library.");
+        }
+
+        synchronized (lock) {
+            hotRangeStart = startId;
+            hotRangeCount = count;
+            freeIdHint = 0;
+        }
+    }
+
+    /**
+     * @return the time (in milliseconds) between confirmed removal of a finger
+     * and the next prompt to put the finger on the sensor.
+     */
+    public long getFingerSettleTime() {
+        synchronized (lock) {
+            return fingerSettleTime;
+        }
+    }
+
+    /**
+     * Sets the time between confirmed removal of a finger and the next prompt
+     * to put the finger on the sensor during enrollment.
+     *
+     * @param fingerSettleTime the settle time in milliseconds.
+     */
+    public void setFingerSettleTime(long fingerSettleTime) {
+        if (fingerSettleTime < 0) {
+            throw new IllegalArgumentException("Settle time cannot be negative.");
+        }
+
+        synchronized (lock) {
+            this.fingerSettleTime = fingerSettleTime;
+        }
+    }
+
+    /**
+     * Opens connection to the sensor.
+     */
+    public void open() {
+        // try to open port
+        openSerialPort(baudRate);
+        invalidateOccupancy();
+        synchronized (lock) {
+            templateCache.clear();
+            Arrays.fill(charBufferTemplateIds, -1);
+        }
+
+        updatePackageProlog();
+
+        // try handshake with sensor
+        try {
+            if (!verifyPassword(defaultTimeout)) {
+                throw new RuntimeException("Handshaking failed.");
+            }
+            if (!readSystemParameters(defaultTimeout)) {
+                throw new RuntimeException("Cannot read system parameters.");
+            }
+
+        } catch (Exception e) {
+            close();
+            throw new FingerprintSensorException("Handshaking with sensor failed.", e);
+        }
+    }
+
+    /**
+     * Opens the serial port at given baud rate and creates the serial port
+     * reader.
+     *
+     * @param portBaudRate the baud rate of serial port.
+     */
+    private void openSerialPort(int portBaudRate) {
+        try {
+            serialPort.openPort();
+            serialPort.setParams(portBaudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+            serialPortReader = new SerialPortReader(serialPort, portBaudRate, eventDrivenReceive);
+        } catch (Exception e) {
+            try {
+                serialPortReader = null;
+                serialPort.closePort();
+            } catch (Exception ignore) {
+
+            }
+
+            throw new FingerprintSensorException("Opening of serial port failed.", e);
+        }
+    }
+
+    /**
+     * Changes the baud rate of serial link to the sensor. The new baud rate is
+     * set in the module, the serial port is reopened at the new baud rate and
+     * the connection is verified by handshake and reading of system
+     * parameters. The module switches to the new baud rate after the change is
+     * acknowledged, so the handshake is repeated after a short settle time. If
+     * the module does not respond at the new baud rate, the supported baud
+     * rates are scanned starting with the previous one and the previous baud
+     * rate is restored in the module. If the module does not respond at any
+     * baud rate, the connection is closed and an exception is thrown.
+     *
+     * @param newBaudRate the new baud rate, 9600*N bps for N = 1 - 12 (up to
+     * 115200 bps).
+     * @return true, if the baud rate has been changed, false if the sensor
+     * communicates at the previous baud rate (or, if the previous baud rate
+     * cannot be restored, at the baud rate given by
+     * {@link #getBaudRateControl()}).
+     * @throws FingerprintSensorException if the sensor does not respond at any
+     * baud rate.
+     */
+    public boolean changeBaudRate(int newBaudRate) throws FingerprintSensorException {
+        synchronized (lock) {
+            if ((newBaudRate % 9600 != 0) || (newBaudRate / 9600 < 1) || (newBaudRate / 9600 > 12)) {
+                throw new IllegalArgumentException("Baud rate must be 9600*N bps for N = 1 - 12.");
+            }
+
+            if (serialPortReader == null) {
+                throw new FingerprintSensorException("Connection to the sensor is not open.");
+            }
+
+            int oldBaudRate = baudRate;
+            if (newBaudRate == oldBaudRate) {
+                return true;
+            }
+
+            // the module acknowledges the change at the previous baud rate
+            // and then switches to the new baud rate
+            setSystemParameter(SP_BAUD_RATE_CONTROL, newBaudRate / 9600, defaultTimeout);
+            for (int attempt = 0; attempt < BAUD_RATE_CHANGE_ATTEMPTS; attempt++) {
+                if (reopenSerialPort(newBaudRate)) {
+                    baudRate = newBaudRate;
+                    return true;
+                }
+            }
+
+            // find the baud rate of the module starting with the previous one
+            int moduleBaudRate = -1;
+            for (int n = 0; n <= 12; n++) {
+                int portBaudRate = (n == 0) ? oldBaudRate : n * 9600;
+                if (((n == 0) || (portBaudRate != oldBaudRate)) && reopenSerialPort(portBaudRate)) {
+                    moduleBaudRate = portBaudRate;
+                    break;
+                }
+            }
+
+            if (moduleBaudRate < 0) {
+                close();
+                throw new FingerprintSensorException("Handshaking with sensor failed after the baud rate change.");
+            }
+
+            baudRate = moduleBaudRate;
+            if (moduleBaudRate == newBaudRate) {
+                return true;
+            }
+
+            // restore the previous baud rate in the module
+            if (moduleBaudRate != oldBaudRate) {
+                setSystemParameter(SP_BAUD_RATE_CONTROL, oldBaudRate / 9600, defaultTimeout);
+                for (int attempt = 0; attempt < BAUD_RATE_CHANGE_ATTEMPTS; attempt++) {
+                    if (reopenSerialPort(oldBaudRate)) {
+                        baudRate = oldBaudRate;
+                        return false;
+                    }
+                }
+
+                if (!reopenSerialPort(moduleBaudRate)) {
+                    close();
+                    throw new FingerprintSensorException("Handshaking with sensor failed after the baud rate change.");
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Reopens the serial port at given baud rate and verifies the connection
+     * by handshake and reading of system parameters. The handshake starts
+     * after a settle time, so that the module can switch its baud rate.
+     *
+     * @param portBaudRate the baud rate of serial port.
+     * @return true, if the handshake succeeded, false otherwise.
+     */
+    private boolean reopenSerialPort(int portBaudRate) {
         try {
             serialPortReader = null;
             serialPort.closePort();
         } catch (Exception ignore) {
 
         }
+
+        try {
+            openSerialPort(portBaudRate);
+            Thread.sleep(BAUD_RATE_SETTLE_TIME);
+            return verifyPassword(defaultTimeout) && readSystemParameters(defaultTimeout);
+        } catch (FingerprintSensorException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
-    public void waitForFingerprint() throws FingerprintSensorException {
-        synchronized (lock) {
-            while (!getImage(defaultTimeout)) {
-                if (runningActivity != null) {
-                    if (runningActivity.cancellationRequested) {
-                        throw new RuntimeException("Activity cancelled.");
+    /**
+     * Closes connection to the sensor.
+     */
+    public void close() {
+        if (serialPortReader == null) {
+            return;
+        }
+
+        try {
+            serialPortReader = null;
+            serialPort.closePort();
+        } catch (Exception ignore) {
+
+        }
+    }
+
+    /**
+     * Submits a command for execution by the I/O thread of the sensor. The
+     * command is executed with exclusive access to the sensor after all
+     * previously submitted commands and activities. The returned future is
+     * completed by the I/O thread, so dependent actions should not block.
+     *
+     * @param <T> the type of command result.
+     * @param command the command.
+     * @return the future completed with the result of the command.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> command) {
+        return submit(command, false);
+    }
+
+    /**
+     * Submits a long-running job for execution by the I/O thread of the
+     * sensor. Unlike commands submitted by {@link #submit(Callable)}, the job
+     * is never executed while a running activity waits for a finger.
+     *
+     * @param <T> the type of job result.
+     * @param job the job.
+     * @return the future completed with the result of the job.
+     */
+    <T> CompletableFuture<T> submitJob(final Callable<T> job) {
+        return submit(job, true);
+    }
+
+    /**
+     * Submits a command for execution by the I/O thread of the sensor.
+     *
+     * @param <T> the type of command result.
+     * @param command the command.
+     * @param job true, if the command is a long-running job that must not be
+     * executed while an activity waits.
+     * @return the future completed with the result of the command.
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> command, boolean job) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+
+                T result;
+                try {
+                    synchronized (lock) {
+                        result = command.call();
                     }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                    return;
                 }
+
+                future.complete(result);
+            }
+        }, job);
+
+        return future;
+    }
+
+    /**
+     * Executes a command in the calling thread with exclusive access to the
+     * sensor. Sequences of commands that must not be interleaved with other
+     * commands (e.g., loading and storing a template via a char buffer) should
+     * be executed by this method or by {@link #submit(Callable)}.
+     *
+     * @param <T> the type of command result.
+     * @param command the command.
+     * @return the result of the command.
+     * @throws FingerprintSensorException
+     */
+    public <T> T execute(Callable<T> command) throws FingerprintSensorException {
+        synchronized (lock) {
+            try {
+                return command.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new FingerprintSensorException(e);
             }
         }
     }
 
+    /**
+     * @return the number of commands and activities submitted to the I/O
+     * thread that have not been completed yet.
+     */
+    public int getQueuedCommandCount() {
+        return commandQueue.getPendingCount();
+    }
+
+    /**
+     * Waits until a finger is put on the sensor. The sensor is polled with
+     * respect to the finger polling policy.
+     *
+     * @throws FingerprintSensorException
+     */
+    public void waitForFingerprint() throws FingerprintSensorException {
+        waitForFingerState(true);
+    }
+
+    /**
+     * Waits until the finger is removed from the sensor. The sensor is polled
+     * with respect to the finger polling policy.
+     *
+     * @throws FingerprintSensorException
+     */
     public void waitForFingerRemoved() throws FingerprintSensorException {
+        waitForFingerState(false);
+    }
+
+    /**
+     * Polls the sensor until the presence of a finger on the sensor matches
+     * the expected state.
+     *
+     * @param fingerPresent the expected state.
+     * @throws FingerprintSensorException
+     */
+    private void waitForFingerState(boolean fingerPresent) throws FingerprintSensorException {
         synchronized (lock) {
-            while (getImage(defaultTimeout)) {
+            FingerPollingPolicy policy = fingerPollingPolicy;
+            long startTime = System.nanoTime();
+            long interval = policy.getPollingInterval();
+
+            while (getImage(defaultTimeout) != fingerPresent) {
                 if (runningActivity != null) {
                     if (runningActivity.cancellationRequested) {
-                        throw new RuntimeException("Activity cancelled.");
+                        throw new CancellationException("Activity cancelled.");
                     }
                 }
+
+                long elapsedTime = (System.nanoTime() - startTime) / 1_000_000;
+                if ((policy.getDeadline() > 0) && (elapsedTime >= policy.getDeadline())) {
+                    throw new FingerprintSensorException(
+                            fingerPresent ? "No finger detected on the sensor." : "Finger has not been removed.");
+                }
+
+                // compute delay before the next poll
+                long delay;
+                if (elapsedTime < policy.getFastPollingWindow()) {
+                    delay = policy.getPollingInterval();
+                } else {
+                    delay = interval;
+                    interval = Math.min(2 * interval, policy.getMaxPollingInterval());
+                }
+
+                if (policy.getDeadline() > 0) {
+                    delay = Math.min(delay, policy.getDeadline() - elapsedTime);
+                }
+
+                pausePolling(delay, policy.isYieldingBetweenPolls() && !charBuffersHeld);
             }
         }
     }
 
+    /**
+     * Starts a workflow in the current thread. If another thread runs a
+     * workflow, the method waits until the workflow is finished. The method
+     * must be invoked with the lock held.
+     *
+     * @param activity the activity realized by the workflow or null.
+     * @throws FingerprintSensorException
+     */
+    private void beginWorkflow(Activity<?> activity) throws FingerprintSensorException {
+        Thread currentThread = Thread.currentThread();
+        if ((workflowThread == currentThread) && workflowYielding) {
+            // a command executed by the I/O thread while a workflow waits
+            throw new FingerprintSensorException("A workflow cannot be started while another workflow waits.");
+        }
+
+        try {
+            while ((workflowThread != null) && (workflowThread != currentThread)) {
+                lock.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintSensorException("Waiting for running workflow has been interrupted.", e);
+        }
+
+        workflowThread = currentThread;
+        workflowDepth++;
+        if (activity != null) {
+            runningActivity = activity;
+        }
+    }
+
+    /**
+     * Finishes a workflow started by {@link #beginWorkflow(Activity)}. The
+     * method must be invoked with the lock held.
+     */
+    private void endWorkflow() {
+        workflowDepth--;
+        if (workflowDepth == 0) {
+            workflowThread = null;
+            runningActivity = null;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Pauses polling of the sensor.
+     *
+     * @param delay the duration of the pause in milliseconds.
+     * @param yielding true, if the sensor is released for other commands
+     * during the pause.
+     * @throws FingerprintSensorException
+     */
+    private void pausePolling(long delay, boolean yielding) throws FingerprintSensorException {
+        if (delay <= 0) {
+            return;
+        }
+
+        try {
+            workflowYielding = yielding;
+            if (yielding) {
+                // waiting releases the lock, so that single commands blocked
+                // in other threads can be executed (other workflows wait
+                // until this workflow is finished); the I/O thread also
+                // executes queued single commands between the waits
+                boolean ioThread = commandQueue.isIoThread();
+                long endTime = System.nanoTime() + delay * 1_000_000;
+                long remainingTime = delay;
+                while (remainingTime > 0) {
+                    if (!ioThread || !commandQueue.executeCommand()) {
+                        lock.wait(ioThread ? Math.min(remainingTime, QUEUE_CHECK_INTERVAL) : remainingTime);
+                    }
+                    remainingTime = (endTime - System.nanoTime()) / 1_000_000;
+                }
+            } else {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FingerprintSensorException("Waiting for finger has been interrupted.", e);
+        } finally {
+            workflowYielding = false;
+        }
+    }
+
     /**
      * Workflow for getting the fingerprint image and saving the template under
      * the specified id.
@@ -729,43 +1540,49 @@ public class FingerprintSensor {
     public void enrollActivity(int fingerprintId, HumanActionListener humanActionListener)
             throws FingerprintSensorException {
         synchronized (lock) {
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-
-            // wait for a valid fingerprint
-            waitForFingerprint();
-
-            // generate char file and store it in char buffer1
-            image2Tz(CHAR_BUFFER1, defaultTimeout);
-
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
-            // wait for the finger to be removed
-            waitForFingerRemoved();
-
+            beginWorkflow(null);
             try {
-                Thread.sleep(defaultTimeout);
-            } catch (InterruptedException exception) {
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
+
+                // wait for a valid fingerprint
+                waitForFingerprint();
+
+                // generate char file and store it in char buffer1
+                image2Tz(CHAR_BUFFER1, defaultTimeout);
+                charBuffersHeld = true;
+
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+                // wait for the finger to be removed and let it settle (char
+                // buffer1 holds the first capture, so the sensor is not
+                // released)
+                waitForFingerRemoved();
+                pausePolling(fingerSettleTime, false);
+
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
+                // wait for a valid fingerprint
+                waitForFingerprint();
+
+                // generate char file and store it in char buffer2
+                image2Tz(CHAR_BUFFER2, defaultTimeout);
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+                // wait for the finger to be removed
+                waitForFingerRemoved();
+
+                // generate template by combining char buffer1 and char buffer2,
+                // store result back in both buffers
+                createModel(defaultTimeout);
+
+                // stores template from specified char buffer in fingerprint
+                // library
+                storeModel(fingerprintId, CHAR_BUFFER2, defaultTimeout);
+            } finally {
+                charBuffersHeld = false;
+                endWorkflow();
             }
-
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-            // wait for a valid fingerprint
-            waitForFingerprint();
-
-            // generate char file and store it in char buffer2
-            image2Tz(CHAR_BUFFER2, defaultTimeout);
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
-            // wait for the finger to be removed
-            waitForFingerRemoved();
-
-            // generate template by combining char buffer1 and char buffer2,
-            // store result back in both buffers
-            createModel(defaultTimeout);
-
-            // stores template from specified char buffer in fingerprint library
-            storeModel(fingerprintId, CHAR_BUFFER2, defaultTimeout);
         }
     }
 
@@ -777,30 +1594,35 @@ public class FingerprintSensor {
      * @param humanActionListener listener for human interaction.
      */
     public Activity<Void> enrollActivityAsync(final int fingerprintId, final HumanActionListener humanActionListener) {
-        synchronized (lock) {
-            final Activity<Void> activity = new Activity<>();
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Throwable catchedException = null;
+        final Activity<Void> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
 
-                    synchronized (lock) {
-                        runningActivity = activity;
+                Throwable catchedException = null;
+
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
                         try {
                             enrollActivity(fingerprintId, humanActionListener);
-                        } catch (Throwable e) {
-                            catchedException = e;
                         } finally {
-                            runningActivity = null;
+                            endWorkflow();
                         }
+                    } catch (Throwable e) {
+                        catchedException = e;
                     }
-
-                    activity.setDone(null, catchedException);
                 }
-            });
 
-            return activity;
-        }
+                activity.setDone(null, catchedException);
+            }
+        }, true);
+
+        return activity;
     }
 
     /**
@@ -815,47 +1637,53 @@ public class FingerprintSensor {
     public FingerprintData enrollAndGetDataActivity(int fingerprintId, HumanActionListener humanActionListener)
             throws FingerprintSensorException {
         synchronized (lock) {
+            beginWorkflow(null);
+            try {
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
 
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-
-            // wait for a valid fingerprint
-            waitForFingerprint();
+                // wait for a valid fingerprint
+                waitForFingerprint();
 
-            humanActionListener.waitWhileDataIsTransferring();
+                humanActionListener.waitWhileDataIsTransferring();
 
-            int[][] scan1 = getImageScan(defaultTimeout);
+                FingerprintImage image1 = downloadImage(defaultTimeout);
 
-            // generate char file and store it in char buffer1
-            image2Tz(CHAR_BUFFER1, defaultTimeout);
+                // generate char file and store it in char buffer1
+                image2Tz(CHAR_BUFFER1, defaultTimeout);
+                charBuffersHeld = true;
 
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
-            // wait for the finger to be removed
-            waitForFingerRemoved();
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+                // wait for the finger to be removed
+                waitForFingerRemoved();
 
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-            // wait for a valid fingerprint
-            waitForFingerprint();
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
+                // wait for a valid fingerprint
+                waitForFingerprint();
 
-            humanActionListener.waitWhileDataIsTransferring();
+                humanActionListener.waitWhileDataIsTransferring();
 
-            int[][] scan2 = getImageScan(defaultTimeout);
+                FingerprintImage image2 = downloadImage(defaultTimeout);
 
-            // generate char file and store it in char buffer2
-            image2Tz(CHAR_BUFFER2, defaultTimeout);
+                // generate char file and store it in char buffer2
+                image2Tz(CHAR_BUFFER2, defaultTimeout);
 
-            // generate template by combining char buffer1 and char buffer2,
-            // store result back in both buffers
-            createModel(defaultTimeout);
+                // generate template by combining char buffer1 and char buffer2,
+                // store result back in both buffers
+                createModel(defaultTimeout);
 
-            int[] features = downloadModel(CHAR_BUFFER2, defaultTimeout);
+                int[] features = downloadModel(CHAR_BUFFER2, defaultTimeout);
 
-            // stores template from specified char buffer in fingerprint library
-            storeModel(fingerprintId, CHAR_BUFFER2, defaultTimeout);
+                // stores template from specified char buffer in fingerprint library
+                storeModel(fingerprintId, CHAR_BUFFER2, defaultTimeout);
 
-            return new FingerprintData(features, scan1, scan2);
+                return new FingerprintData(features, image1, image2);
+            } finally {
+                charBuffersHeld = false;
+                endWorkflow();
+            }
         }
     }
 
@@ -868,31 +1696,36 @@ public class FingerprintSensor {
      * @param humanActionListener listener for human interaction.
      */
     public Activity<FingerprintData> enrollAndGetDataActivityAsync(final int fingerprintId, final HumanActionListener humanActionListener) {
-        synchronized (lock) {
-            final Activity<FingerprintData> activity = new Activity<>();
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Throwable catchedException = null;
-                    FingerprintData buffers = null;
+        final Activity<FingerprintData> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
+
+                Throwable catchedException = null;
+                FingerprintData buffers = null;
 
-                    synchronized (lock) {
-                        runningActivity = activity;
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
                         try {
                             buffers = enrollAndGetDataActivity(fingerprintId, humanActionListener);
-                        } catch (Throwable e) {
-                            catchedException = e;
                         } finally {
-                            runningActivity = null;
+                            endWorkflow();
                         }
+                    } catch (Throwable e) {
+                        catchedException = e;
                     }
-
-                    activity.setDone(buffers, catchedException);
                 }
-            });
 
-            return activity;
-        }
+                activity.setDone(buffers, catchedException);
+            }
+        }, true);
+
+        return activity;
     }
 
     /**
@@ -905,20 +1738,26 @@ public class FingerprintSensor {
     public SearchResult searchActivity(HumanActionListener humanActionListener)
             throws FingerprintSensorException {
         synchronized (lock) {
-
-            // instruct human to put finger on the sensor 
-            humanActionListener.putFinger();
-            waitForFingerprint();
-
-            // generate char file and store it in char buffer1
-            image2Tz(CHAR_BUFFER1, defaultTimeout);
-
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
-            waitForFingerRemoved();
-
-            // return search result
-            return search(defaultTimeout);
+            beginWorkflow(null);
+            try {
+                // instruct human to put finger on the sensor 
+                humanActionListener.putFinger();
+                waitForFingerprint();
+
+                // generate char file and store it in char buffer1
+                image2Tz(CHAR_BUFFER1, defaultTimeout);
+                charBuffersHeld = true;
+
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+                waitForFingerRemoved();
+
+                // return search result
+                return search(defaultTimeout);
+            } finally {
+                charBuffersHeld = false;
+                endWorkflow();
+            }
         }
     }
 
@@ -928,29 +1767,34 @@ public class FingerprintSensor {
      * @param humanActionListener listener for human interaction.
      */
     public Activity<SearchResult> searchActivityAsync(final HumanActionListener humanActionListener) {
-        synchronized (lock) {
-            final Activity<SearchResult> activity = new Activity<>();
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Throwable catchedException = null;
-                    SearchResult result = null;
-                    synchronized (lock) {
-                        runningActivity = activity;
+        final Activity<SearchResult> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
+
+                Throwable catchedException = null;
+                SearchResult result = null;
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
                         try {
                             result = searchActivity(humanActionListener);
-                        } catch (Throwable e) {
-                            catchedException = e;
                         } finally {
-                            runningActivity = null;
+                            endWorkflow();
                         }
+                    } catch (Throwable e) {
+                        catchedException = e;
                     }
-
-                    activity.setDone(result, catchedException);
                 }
-            });
-            return activity;
-        }
+
+                activity.setDone(result, catchedException);
+            }
+        }, true);
+        return activity;
     }
 
     /**
@@ -965,22 +1809,29 @@ public class FingerprintSensor {
     public int matchActivity(int fingerprintId, HumanActionListener humanActionListener)
             throws FingerprintSensorException {
         synchronized (lock) {
-            // load model from library to char buffer1
-            loadModel(fingerprintId, CHAR_BUFFER1, defaultTimeout);
-
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-            waitForFingerprint();
-
-            // generate char file and store it in char buffer2
-            image2Tz(CHAR_BUFFER2, defaultTimeout);
-
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
-            waitForFingerRemoved();
-
-            // return match score
-            return match(defaultTimeout);
+            beginWorkflow(null);
+            try {
+                // load model from library to char buffer1
+                loadModel(fingerprintId, CHAR_BUFFER1, defaultTimeout);
+                charBuffersHeld = true;
+
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
+                waitForFingerprint();
+
+                // generate char file and store it in char buffer2
+                image2Tz(CHAR_BUFFER2, defaultTimeout);
+
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+                waitForFingerRemoved();
+
+                // return match score
+                return match(defaultTimeout);
+            } finally {
+                charBuffersHeld = false;
+                endWorkflow();
+            }
         }
     }
 
@@ -992,34 +1843,39 @@ public class FingerprintSensor {
      * @param humanActionListener listener for human interaction.
      */
     public Activity<Integer> matchActivityAsync(final int fingerprintId, final HumanActionListener humanActionListener) {
-        synchronized (lock) {
-            final Activity<Integer> activity = new Activity<>();
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Throwable catchedException = null;
-                    Integer matchScore = null;
+        final Activity<Integer> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
 
-                    synchronized (lock) {
-                        runningActivity = activity;
+                Throwable catchedException = null;
+                Integer matchScore = null;
+
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
                         try {
                             matchScore = matchActivity(fingerprintId, humanActionListener);
-                        } catch (Throwable e) {
-                            catchedException = e;
                         } finally {
-                            runningActivity = null;
+                            endWorkflow();
                         }
+                    } catch (Throwable e) {
+                        catchedException = e;
                     }
-                    activity.setDone(matchScore, catchedException);
                 }
-            });
-            return activity;
-        }
+                activity.setDone(matchScore, catchedException);
+            }
+        }, true);
+        return activity;
     }
 
     /**
      * Workflow for getting an image of fingerprint from image buffer into
-     * computer.
+     * computer. The image is saved as PNG after the sensor has been released.
      *
      * @param imagePathName
      * @param humanActionListener
@@ -1027,23 +1883,56 @@ public class FingerprintSensor {
      */
     public void downloadImageActivity(String imagePathName, HumanActionListener humanActionListener)
             throws FingerprintSensorException {
-        synchronized (lock) {
-            // instruct human to put finger on the sensor
-            humanActionListener.putFinger();
-            waitForFingerprint();
+        FingerprintImage image = captureImage(humanActionListener);
 
-            // instruct human to remove the finger from sensor
-            humanActionListener.removeFinger();
+        // save picture
+        try {
+            ImageArchiver.writeImage(image, new File(imagePathName), ImageArchiver.Format.PNG);
+        } catch (IOException ex) {
+            throw new FingerprintSensorException("Failed to save the image.", ex);
+        }
+    }
 
-            // get image scan
-            int[][] b = getImageScan(defaultTimeout);
+    /**
+     * Workflow for getting an image of fingerprint from image buffer into
+     * computer. The image is handed to the archiver as soon as it has been
+     * downloaded, so that the sensor is not blocked by encoding and writing
+     * of the image.
+     *
+     * @param imageFile the file where the image is archived.
+     * @param humanActionListener listener for human interaction.
+     * @param archiver the image archiver.
+     * @return the future completed when the image has been archived.
+     * @throws FingerprintSensorException
+     */
+    public CompletableFuture<File> downloadImageActivity(File imageFile, HumanActionListener humanActionListener,
+            ImageArchiver archiver) throws FingerprintSensorException {
+        return archiver.archive(captureImage(humanActionListener), imageFile);
+    }
 
-            // save picture
-            BufferedImage img = FingerprintUtils.fingerprintScanToImage(b);
+    /**
+     * Waits for a finger and downloads its image.
+     *
+     * @param humanActionListener listener for human interaction.
+     * @return the image.
+     * @throws FingerprintSensorException
+     */
+    private FingerprintImage captureImage(HumanActionListener humanActionListener)
+            throws FingerprintSensorException {
+        synchronized (lock) {
+            beginWorkflow(null);
             try {
-                ImageIO.write(img, "png", new File(imagePathName));
-            } catch (IOException ex) {
-                throw new FingerprintSensorException(ex.getCause());
+                // instruct human to put finger on the sensor
+                humanActionListener.putFinger();
+                waitForFingerprint();
+
+                // instruct human to remove the finger from sensor
+                humanActionListener.removeFinger();
+
+                // get image
+                return downloadImage(defaultTimeout);
+            } finally {
+                endWorkflow();
             }
         }
     }
@@ -1056,28 +1945,100 @@ public class FingerprintSensor {
      * @param humanActionListener listener for human interaction.
      */
     public Activity<Void> downloadImageActivityAsync(final String imagePathName, final HumanActionListener humanActionListener) {
-        synchronized (lock) {
-            final Activity<Void> activity = new Activity<>();
-            executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    Throwable catchedException = null;
+        final Activity<Void> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
 
-                    synchronized (lock) {
-                        runningActivity = activity;
+                Throwable catchedException = null;
+                FingerprintImage image = null;
+
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
+                        try {
+                            image = captureImage(humanActionListener);
+                        } finally {
+                            endWorkflow();
+                        }
+                    } catch (Throwable e) {
+                        catchedException = e;
+                    }
+                }
+
+                // save picture after the sensor has been released
+                if (catchedException == null) {
+                    try {
+                        ImageArchiver.writeImage(image, new File(imagePathName), ImageArchiver.Format.PNG);
+                    } catch (IOException ex) {
+                        catchedException = new FingerprintSensorException("Failed to save the image.", ex);
+                    }
+                }
+                activity.setDone(null, catchedException);
+            }
+        }, true);
+        return activity;
+    }
+
+    /**
+     * Asynchronous workflow for getting an image of fingerprint from image
+     * buffer into computer and archiving it by an image archiver.
+     *
+     * @param imageFile the file where the image is archived.
+     * @param humanActionListener listener for human interaction.
+     * @param archiver the image archiver.
+     * @return the activity completed with the file when the image has been
+     * archived.
+     */
+    public Activity<File> downloadImageActivityAsync(final File imageFile,
+            final HumanActionListener humanActionListener, final ImageArchiver archiver) {
+        final Activity<File> activity = new Activity<>();
+        commandQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.cancellationRequested) {
+                    activity.setDone(null, new CancellationException("Activity cancelled."));
+                    return;
+                }
+
+                Throwable catchedException = null;
+                FingerprintImage image = null;
+
+                synchronized (lock) {
+                    try {
+                        beginWorkflow(activity);
                         try {
-                            downloadImageActivity(imagePathName, humanActionListener);
-                        } catch (Throwable e) {
-                            catchedException = e;
+                            image = captureImage(humanActionListener);
                         } finally {
-                            runningActivity = null;
+                            endWorkflow();
                         }
+                    } catch (Throwable e) {
+                        catchedException = e;
                     }
+                }
+
+                if (catchedException != null) {
                     activity.setDone(null, catchedException);
+                    return;
                 }
-            });
-            return activity;
-        }
+
+                try {
+                    archiver.archive(image, imageFile).whenComplete(new BiConsumer<File, Throwable>() {
+                        @Override
+                        public void accept(File file, Throwable throwable) {
+                            activity.setDone(file, throwable);
+                        }
+                    });
+                } catch (Throwable e) {
+                    activity.setDone(null, e);
+                }
+            }
+        }, true);
+        return activity;
     }
 
     /**
@@ -1089,17 +2050,29 @@ public class FingerprintSensor {
      */
     public SearchResult searchUploadedImage(String imagePathName)
             throws FingerprintSensorException {
-        synchronized (lock) {
-            BufferedImage image;
-            try {
-                image = ImageIO.read(new File(imagePathName));
-            } catch (IOException ex) {
-                throw new FingerprintSensorException(ex.getCause());
-            }
-            int[][] scan = FingerprintUtils.imageToFingerprintScan(image);
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new File(imagePathName));
+        } catch (IOException ex) {
+            throw new FingerprintSensorException(ex.getCause());
+        }
+
+        // decode the image before the sensor is locked
+        return searchImage(FingerprintImage.fromScan(FingerprintUtils.imageToFingerprintScan(image)));
+    }
 
-            // download first scan to image buffer
-            uploadImageScan(defaultTimeout, scan);
+    /**
+     * Uploads an image to the sensor and searches for a match in the module
+     * library.
+     *
+     * @param image the fingerprint image.
+     * @return the result, if the match was found, null otherwise.
+     * @throws FingerprintSensorException
+     */
+    public SearchResult searchImage(FingerprintImage image) throws FingerprintSensorException {
+        synchronized (lock) {
+            // download image to image buffer
+            uploadImage(image, defaultTimeout);
 
             // generate char file and store it in char buffer1
             image2Tz(CHAR_BUFFER1, defaultTimeout);
@@ -1115,16 +2088,20 @@ public class FingerprintSensor {
      *
      * @param fingerprintId id of the new template.
      * @param characteristics char file generated by sensor
-     * @throws FingerprintSensorException
+     * @throws FingerprintSensorException if the characteristics could not be
+     * uploaded or stored.
      */
     public void enroll(int fingerprintId, int[] characteristics)
             throws FingerprintSensorException {
         synchronized (lock) {
             // upload characteristics from computer to char buffer 2
-            uploadModel(CHAR_BUFFER2, characteristics, defaultTimeout);
+            if (!uploadModel(CHAR_BUFFER2, characteristics, defaultTimeout)) {
+                throwFingerprintException(CC_UPLOAD_TEMP_ERR);
+            }
 
             // stores template from specified char buffer in fingerprint library
             storeModel(fingerprintId, CHAR_BUFFER2, defaultTimeout);
+            templateCache.put(fingerprintId, characteristics);
         }
     }
 
@@ -1139,18 +2116,31 @@ public class FingerprintSensor {
      */
     public void enroll(int fingerprintId, int[][] scan1, int[][] scan2)
             throws FingerprintSensorException {
+        if (scan1.length != 288 || scan1[0].length != 256 || scan2.length != 288 || scan2[0].length != 256) {
+            throwFingerprintException(WRONG_SCAN_SIZE);
+        }
+
+        enroll(fingerprintId, FingerprintImage.fromScan(scan1), FingerprintImage.fromScan(scan2));
+    }
+
+    /**
+     * Uploads two images, combine them and stores template in the fingerprint
+     * library.
+     *
+     * @param fingerprintId id of the new template.
+     * @param image1 fingerprint image
+     * @param image2 fingerprint image
+     * @throws FingerprintSensorException
+     */
+    public void enroll(int fingerprintId, FingerprintImage image1, FingerprintImage image2)
+            throws FingerprintSensorException {
         synchronized (lock) {
 
-            uploadImageScan(defaultTimeout, scan1);
+            uploadImage(image1, defaultTimeout);
             // generate char file and store it in char buffer1
             image2Tz(CHAR_BUFFER1, defaultTimeout);
 
-            try {
-                Thread.sleep(defaultTimeout);
-            } catch (InterruptedException exception) {
-            }
-
-            uploadImageScan(defaultTimeout, scan2);
+            uploadImage(image2, defaultTimeout);
             // generate char file and store it in char buffer2
             image2Tz(CHAR_BUFFER2, defaultTimeout);
 
@@ -1171,10 +2161,10 @@ public class FingerprintSensor {
      */
     private boolean verifyPassword(long timeout) throws FingerprintSensorException {
         // create command data
-        int[] commandData = {IC_VERIFY_PASSWORD, 0, 0, 0, 0};
+        byte[] commandData = {IC_VERIFY_PASSWORD, 0, 0, 0, 0};
         long pwd = password;
         for (int i = 4; i >= 1; i--) {
-            commandData[i] = (int) (pwd % 256);
+            commandData[i] = (byte) (pwd % 256);
             pwd = pwd / 256;
         }
 
@@ -1183,8 +2173,8 @@ public class FingerprintSensor {
 
         // receive command acknowledgement
         Package reply = readPackage(timeout);
-        return (reply != null) && (reply.type == PACKET_TYPE_ACK) && (reply.data.length == 1)
-                && (reply.data[0] == CC_OK);
+        return (reply != null) && (reply.type == PACKET_TYPE_ACK) && (reply.length() == 1)
+                && (reply.get(0) == CC_OK);
 
     }
 
@@ -1198,7 +2188,7 @@ public class FingerprintSensor {
     private boolean readSystemParameters(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_READ_SYSTEM_PARAM};
+            byte[] commandData = {IC_READ_SYSTEM_PARAM};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
@@ -1206,18 +2196,18 @@ public class FingerprintSensor {
             // receive command acknowledgement
             Package reply = readPackage(timeout);
 
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 17)
-                    || (reply.data[0] != CC_OK)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 17)
+                    || (reply.get(0) != CC_OK)) {
                 return false;
             }
-            statusRegister = reply.data[1] * 256 + reply.data[2];
-            systemIdentifierCode = reply.data[3] * 256 + reply.data[4];
-            libraryCapacity = reply.data[5] * 256 + reply.data[6];
-            securityLevel = reply.data[7] * 256 + reply.data[8];
-            moduleAddress = (long) reply.data[9] * 256 * 256 * 256 + reply.data[10] * 256 * 256 + reply.data[11] * 256
-                    + reply.data[12];
-            int dataPackageLengthValue = reply.data[13] * 256 + reply.data[14];
-            baudRateControl = (reply.data[15] * 256 + reply.data[16]) * 9600;
+            statusRegister = reply.get(1) * 256 + reply.get(2);
+            systemIdentifierCode = reply.get(3) * 256 + reply.get(4);
+            libraryCapacity = reply.get(5) * 256 + reply.get(6);
+            securityLevel = reply.get(7) * 256 + reply.get(8);
+            moduleAddress = (long) reply.get(9) * 256 * 256 * 256 + reply.get(10) * 256 * 256 + reply.get(11) * 256
+                    + reply.get(12);
+            int dataPackageLengthValue = reply.get(13) * 256 + reply.get(14);
+            baudRateControl = (reply.get(15) * 256 + reply.get(16)) * 9600;
 
             dataPackageLength = 32;
             for (int i = 0; i < dataPackageLengthValue; i++) {
@@ -1227,6 +2217,32 @@ public class FingerprintSensor {
         }
     }
 
+    /**
+     * Sets a system parameter of the module.
+     *
+     * @param parameterNumber the number of the parameter.
+     * @param value the new value of the parameter.
+     * @param timeout the timeout in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    private void setSystemParameter(int parameterNumber, int value, long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            // create command data
+            byte[] commandData = {IC_SET_SYSTEM_PARAM, (byte) parameterNumber, (byte) value};
+
+            // send command
+            writePackage(PACKET_TYPE_COMMAND, commandData);
+
+            // receive command acknowledgement
+            Package reply = readPackage(timeout);
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
+                throwFingerprintException(-1);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
+            }
+        }
+    }
+
     /**
      * Deletes each stored template from the module library.
      *
@@ -1236,18 +2252,24 @@ public class FingerprintSensor {
     public void emptyModuleLibrary(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_EMPTY_LIB};
+            byte[] commandData = {IC_EMPTY_LIB};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
+
+            occupiedIds = new BitSet(libraryCapacity);
+            reservedIds.clear();
+            freeIdHint = 0;
+            templateCache.clear();
+            Arrays.fill(charBufferTemplateIds, -1);
         }
     }
 
@@ -1261,7 +2283,7 @@ public class FingerprintSensor {
     public int getTemplateCount(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_TEMPLATE_COUNT};
+            byte[] commandData = {IC_TEMPLATE_COUNT};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
@@ -1269,52 +2291,283 @@ public class FingerprintSensor {
             // receive reply package
             Package reply = readPackage(timeout);
 
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 3)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 3)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
 
-            int templateCount = reply.data[1] * 256 + reply.data[2];
+            int templateCount = reply.get(1) * 256 + reply.get(2);
             return templateCount;
         }
     }
 
+    /**
+     * Reads the index table of the module library.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the set of ids of stored templates.
+     * @throws FingerprintSensorException
+     */
+    public BitSet readIndexTable(long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            BitSet indexedIds = new BitSet(libraryCapacity);
+            int pageCount = (libraryCapacity + 255) / 256;
+            for (int page = 0; page < pageCount; page++) {
+                // create command data
+                byte[] commandData = {IC_READ_INDEX_TABLE, (byte) page};
+
+                // send command
+                writePackage(PACKET_TYPE_COMMAND, commandData);
+
+                // receive reply package
+                Package reply = readPackage(timeout);
+                if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 33)) {
+                    throwFingerprintException(-1);
+                } else if (reply.get(0) != CC_OK) {
+                    throwFingerprintException(reply.get(0));
+                }
+
+                // each bit of the index indicates whether a template is stored
+                for (int i = 0; i < 32; i++) {
+                    int indexByte = reply.get(i + 1);
+                    for (int bit = 0; bit < 8; bit++) {
+                        int id = page * 256 + i * 8 + bit;
+                        if (((indexByte & (1 << bit)) != 0) && (id < libraryCapacity)) {
+                            indexedIds.set(id);
+                        }
+                    }
+                }
+            }
+
+            occupiedIds = (BitSet) indexedIds.clone();
+            freeIdHint = 0;
+            return indexedIds;
+        }
+    }
+
+    /**
+     * Returns the set of ids of stored templates. The set is cached after the
+     * index table of the module library has been read and it is updated by
+     * commands that store or delete templates.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the set of ids of stored templates.
+     * @throws FingerprintSensorException
+     */
+    public BitSet getOccupiedIds(long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            if (occupiedIds == null) {
+                readIndexTable(timeout);
+            }
+
+            return (BitSet) occupiedIds.clone();
+        }
+    }
+
+    /**
+     * Returns whether a template is stored at given id of the module library.
+     *
+     * @param id the id in the module library.
+     * @param timeout the timeout in milliseconds.
+     * @return true, if a template is stored at the id, false otherwise.
+     * @throws FingerprintSensorException
+     */
+    public boolean isOccupied(int id, long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            if (occupiedIds == null) {
+                readIndexTable(timeout);
+            }
+
+            return occupiedIds.get(id);
+        }
+    }
+
+    /**
+     * Returns the lowest free id of the module library and reserves it, so
+     * that the id is not returned again until it is used to store a template
+     * or released by deleting templates. Ids of the hot range are never
+     * returned, since they are kept for templates promoted by
+     * {@link HotTemplateOptimizer}. The index table is read only if the set of
+     * stored templates is not cached.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the free id, or -1 if the module library is full.
+     * @throws FingerprintSensorException
+     */
+    public int allocateFreeId(long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            if (occupiedIds == null) {
+                readIndexTable(timeout);
+            }
+
+            int hotRangeEnd = hotRangeStart + hotRangeCount;
+            int id = freeIdHint;
+            while (true) {
+                id = occupiedIds.nextClearBit(id);
+                if ((id >= hotRangeStart) && (id < hotRangeEnd)) {
+                    // the hot range is kept for promoted templates
+                    id = hotRangeEnd;
+                } else if (reservedIds.get(id)) {
+                    id = reservedIds.nextClearBit(id);
+                } else {
+                    break;
+                }
+            }
+
+            freeIdHint = id;
+            if (id >= libraryCapacity) {
+                return -1;
+            }
+
+            reservedIds.set(id);
+            return id;
+        }
+    }
+
+    /**
+     * Returns the lowest id starting from given id that is neither occupied
+     * nor reserved by {@link #allocateFreeId(long)}. The method selects target
+     * slots of moved templates, so that a template is never moved to an id
+     * that has been given to another caller.
+     *
+     * @param occupiedIds the set of ids of stored templates.
+     * @param fromId the lowest id that can be returned.
+     * @return the free id, or an id that is not lower than the library
+     * capacity if there is no free id.
+     */
+    int nextFreeId(BitSet occupiedIds, int fromId) {
+        synchronized (lock) {
+            int id = fromId;
+            while (true) {
+                id = occupiedIds.nextClearBit(id);
+                if (!reservedIds.get(id)) {
+                    return id;
+                }
+
+                id = reservedIds.nextClearBit(id);
+            }
+        }
+    }
+
+    /**
+     * Discards the cached set of ids of stored templates, so that the index
+     * table is read again when needed. The method should be invoked when the
+     * module library could be modified by another host.
+     */
+    public void invalidateOccupancy() {
+        synchronized (lock) {
+            occupiedIds = null;
+            reservedIds.clear();
+            freeIdHint = 0;
+        }
+    }
+
     /**
      * Search for a match for characteristics stored in char buffer1 in the
      * module library.
      *
      * @param timeout the timeout in milliseconds.
      * @return the result, if the match was found, null otherwise.
-     * @throws FingerprintSensorException
+     * @throws FingerprintSensorException if the sensor has not been opened, so
+     * the library capacity is unknown, or if the search fails.
      */
     public SearchResult search(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
-            // create command data
-            int[] commandData = {IC_SEARCH, CHAR_BUFFER1, 0, 0, libraryCapacity / 256, libraryCapacity % 256};
-
-            // send command
-            writePackage(PACKET_TYPE_COMMAND, commandData);
-
-            // receive reply package
-            Package reply = readPackage(timeout);
+            if (libraryCapacity == 0) {
+                throw new FingerprintSensorException("Library capacity is unknown, the sensor is not open.");
+            }
+
+            return search(0, libraryCapacity, timeout);
+        }
+    }
+
+    /**
+     * Search for a match for characteristics stored in char buffer1 in a range
+     * of the module library.
+     *
+     * @param startId the first id of the searched range.
+     * @param count the number of templates in the searched range.
+     * @param timeout the timeout in milliseconds.
+     * @return the result, if the match was found, null otherwise.
+     * @throws FingerprintSensorException
+     */
+    public SearchResult search(int startId, int count, long timeout) throws FingerprintSensorException {
+        if ((startId < 0) || (count < 1) || (startId + count > 0xFFFF)) {
+            throw new IllegalArgumentException("Invalid range of the library.");
+        }
+
+        synchronized (lock) {
+            // create command data
+            byte[] commandData = {IC_SEARCH, CHAR_BUFFER1, (byte) (startId / 256), (byte) (startId % 256),
+                (byte) (count / 256), (byte) (count % 256)};
+
+            // send command
+            writePackage(PACKET_TYPE_COMMAND, commandData);
+
+            // receive reply package
+            Package reply = readPackage(timeout);
+
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 5)) {
+                throwFingerprintException(-1);
+            } else if ((reply.get(0) != CC_OK) && (reply.get(0) != CC_MATCH_NOT_FOUND)) {
+                throwFingerprintException(reply.get(0));
+            } else if (reply.get(0) == CC_MATCH_NOT_FOUND) {
+                return null;
+            }
+            // return found match
+            int fingerId = reply.get(1) * 256 + reply.get(2);
+            int matchScore = reply.get(3) * 256 + reply.get(4);
+
+            return new SearchResult(fingerId, matchScore);
+        }
+    }
+
+    /**
+     * Search for a match for characteristics stored in char buffer1 in the
+     * hot range of the module library first. If no match is found, the rest
+     * of the library is searched.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the result, if the match was found, null otherwise.
+     * @throws FingerprintSensorException
+     */
+    public SearchResult searchTiered(long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            int hotRangeEnd = Math.min(hotRangeStart + hotRangeCount, libraryCapacity);
+            if (hotRangeStart >= hotRangeEnd) {
+                return search(timeout);
+            }
 
-            //System.out.println(Arrays.toString(reply.data));
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 5)) {
-                throwFingerprintException(-1);
-            } else if ((reply.data[0] != CC_OK) && (reply.data[0] != CC_MATCH_NOT_FOUND)) {
-                throwFingerprintException(reply.data[0]);
-            } else if (reply.data[0] == CC_MATCH_NOT_FOUND) {
-                return null;
+            SearchResult result = search(hotRangeStart, hotRangeEnd - hotRangeStart, timeout);
+            if ((result == null) && (hotRangeStart > 0)) {
+                result = search(0, hotRangeStart, timeout);
+            }
+            if ((result == null) && (hotRangeEnd < libraryCapacity)) {
+                result = search(hotRangeEnd, libraryCapacity - hotRangeEnd, timeout);
             }
-            // return found match
-            int fingerId = reply.data[1] * 256 + reply.data[2];
-            int matchScore = reply.data[3] * 256 + reply.data[4];
 
-            return new SearchResult(fingerId, matchScore);
+            return result;
         }
     }
 
+    /**
+     * Asynchronously searches for a match for characteristics stored in char
+     * buffer1 in the module library.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with the result, if the match was found, or
+     * null otherwise.
+     */
+    public CompletableFuture<SearchResult> searchAsync(final long timeout) {
+        return submit(new Callable<SearchResult>() {
+            @Override
+            public SearchResult call() {
+                return search(timeout);
+            }
+        });
+    }
+
     /**
      * Matches characteristics stored in char buffer1 and char buffer2.
      *
@@ -1325,28 +2578,45 @@ public class FingerprintSensor {
     public int match(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_MATCH};
+            byte[] commandData = {IC_MATCH};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive reply package
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 3)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 3)) {
                 throwFingerprintException(-1);
-            } else if ((reply.data[0] != CC_OK) && (reply.data[0] != CC_NO_MATCH)) {
-                throwFingerprintException(reply.data[0]);
+            } else if ((reply.get(0) != CC_OK) && (reply.get(0) != CC_NO_MATCH)) {
+                throwFingerprintException(reply.get(0));
             }
-            if (reply.data[0] == CC_NO_MATCH) {
+            if (reply.get(0) == CC_NO_MATCH) {
                 // characteristics in char buffer1 and char buffer2 do not match
                 return -1;
             } else {
                 // characteristics match, return matching score
-                return reply.data[1] * 256 + reply.data[2];
+                return reply.get(1) * 256 + reply.get(2);
             }
         }
     }
 
+    /**
+     * Asynchronously matches characteristics stored in char buffer1 and char
+     * buffer2.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with the matching score if characteristics
+     * match, or -1 if they do not.
+     */
+    public CompletableFuture<Integer> matchAsync(final long timeout) {
+        return submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return match(timeout);
+            }
+        });
+    }
+
     /**
      * Deletes specified number of models in fingerprint library starting with
      * number 'id'.
@@ -1359,17 +2629,30 @@ public class FingerprintSensor {
     public void deleteModels(int id, long timeout, int count) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_DELETE_CHAR, id / 256, id % 256, count / 256, count % 256};
+            byte[] commandData = {IC_DELETE_CHAR, (byte) (id / 256), (byte) (id % 256), (byte) (count / 256),
+                (byte) (count % 256)};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
+            }
+
+            if (occupiedIds != null) {
+                occupiedIds.clear(id, id + count);
+            }
+            reservedIds.clear(id, id + count);
+            freeIdHint = Math.min(freeIdHint, id);
+            templateCache.invalidate(id, count);
+            for (int i = 0; i < charBufferTemplateIds.length; i++) {
+                if ((charBufferTemplateIds[i] >= id) && (charBufferTemplateIds[i] < id + count)) {
+                    charBufferTemplateIds[i] = -1;
+                }
             }
         }
     }
@@ -1395,7 +2678,7 @@ public class FingerprintSensor {
     public boolean getImage(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int commandData[] = {IC_GET_IMAGE};
+            byte[] commandData = {IC_GET_IMAGE};
 
             // send packet
             writePackage(PACKET_TYPE_COMMAND, commandData);
@@ -1403,12 +2686,12 @@ public class FingerprintSensor {
             // get reply
             Package reply = readPackage(timeout);
 
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if ((reply.data[0] != CC_OK) && (reply.data[0] != CC_NO_FINGER)) {
-                throwFingerprintException(reply.data[0]);
+            } else if ((reply.get(0) != CC_OK) && (reply.get(0) != CC_NO_FINGER)) {
+                throwFingerprintException(reply.get(0));
             }
-            if (reply.data[0] == CC_NO_FINGER) {
+            if (reply.get(0) == CC_NO_FINGER) {
                 return false;
             } else {
                 return true;
@@ -1427,18 +2710,19 @@ public class FingerprintSensor {
     public void image2Tz(int charBufferId, long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int packet[] = {IC_IMAGE2TZ, charBufferId};
+            byte[] packet = {IC_IMAGE2TZ, (byte) charBufferId};
 
             // send command
+            setCharBufferTemplateId(charBufferId, -1);
             writePackage(PACKET_TYPE_COMMAND, packet);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
 
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
         }
     }
@@ -1455,40 +2739,129 @@ public class FingerprintSensor {
         synchronized (lock) {
 
             // create command data
-            int packet[] = {IC_DOWNLOAD_CHAR, charBufferId};
+            byte[] packet = {IC_DOWNLOAD_CHAR, (byte) charBufferId};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, packet);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
 
-            int[] charBuffer = new int[0];
-            int idx = 0;
+            byte[] receivedData = readDataPackages(timeout, 0);
+            int[] charBuffer = new int[receivedData.length];
+            for (int i = 0; i < receivedData.length; i++) {
+                charBuffer[i] = receivedData[i] & 0xFF;
+            }
 
-            while (reply.type != PACKET_TYPE_ENDDATA) {
-                reply = readPackage(timeout);
-                // increase charBuffer size
-                int[] tempBuffer = new int[charBuffer.length + reply.data.length];
-                System.arraycopy(charBuffer, 0, tempBuffer, 0, charBuffer.length);
-                charBuffer = tempBuffer;
+            int templateId = getCharBufferTemplateId(charBufferId);
+            if (templateId >= 0) {
+                templateCache.put(templateId, charBuffer);
+            }
 
-                for (int i = 0; i < reply.data.length; i++) {
-                    charBuffer[idx] = reply.data[i];
-                    idx++;
-                }
+            return charBuffer;
+        }
+    }
+
+    /**
+     * Asynchronously transfers a fingerprint template from chosen char buffer
+     * to the computer.
+     *
+     * @param charBufferId character file buffer number (1 or 2)
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with content of the specified charbuffer.
+     */
+    public CompletableFuture<int[]> downloadModelAsync(final int charBufferId, final long timeout) {
+        return submit(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return downloadModel(charBufferId, timeout);
             }
+        });
+    }
 
-            while (reply != null) {
-                // ignore possible additional packets
-                reply = readPackage(defaultTimeout);
+    /**
+     * Reads a template stored in the module library. If the template cache is
+     * enabled and contains the template, no command is sent to the sensor.
+     * Otherwise, the template is loaded to char buffer1 and downloaded.
+     *
+     * @param fingerId the id of the template in the module library.
+     * @param timeout the timeout in milliseconds.
+     * @return the template.
+     * @throws FingerprintSensorException
+     */
+    public int[] readTemplate(int fingerId, long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
+            int[] template = templateCache.get(fingerId);
+            if (template != null) {
+                return template;
             }
-            return charBuffer;
+
+            loadModel(fingerId, CHAR_BUFFER1, timeout);
+            return downloadModel(CHAR_BUFFER1, timeout);
+        }
+    }
+
+    /**
+     * @return the max number of templates in the template cache, 0 if the
+     * cache is disabled.
+     */
+    public int getTemplateCacheCapacity() {
+        synchronized (lock) {
+            return templateCache.getCapacity();
+        }
+    }
+
+    /**
+     * Sets the max number of templates in the template cache. The cache is
+     * filled by enrolled and downloaded templates and the least recently used
+     * templates are evicted. The cached templates are invalidated by commands
+     * that store or delete templates. Since the cache is not aware of
+     * modifications by another host, it should be enabled only if this
+     * instance manages the module library.
+     *
+     * @param capacity the max number of cached templates, 0 to disable the
+     * cache.
+     */
+    public void setTemplateCacheCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity of the cache cannot be negative.");
+        }
+
+        synchronized (lock) {
+            templateCache.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * Returns the id of the template loaded in a char buffer.
+     *
+     * @param charBufferId the char buffer id.
+     * @return the id of the template, or -1 if the char buffer does not
+     * contain a stored template.
+     */
+    private int getCharBufferTemplateId(int charBufferId) {
+        if ((charBufferId < 0) || (charBufferId >= charBufferTemplateIds.length)) {
+            return -1;
+        }
+
+        return charBufferTemplateIds[charBufferId];
+    }
+
+    /**
+     * Sets the id of the template loaded in a char buffer.
+     *
+     * @param charBufferId the char buffer id.
+     * @param fingerId the id of the template, or -1 if the char buffer does not
+     * contain a stored template.
+     */
+    private void setCharBufferTemplateId(int charBufferId, int fingerId) {
+        if ((charBufferId >= 0) && (charBufferId < charBufferTemplateIds.length)) {
+            charBufferTemplateIds[charBufferId] = fingerId;
         }
     }
 
@@ -1507,48 +2880,50 @@ public class FingerprintSensor {
             throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int packet[] = {IC_UPLOAD_CHAR, charBufferId};
+            byte[] packet = {IC_UPLOAD_CHAR, (byte) charBufferId};
 
             // send command
+            setCharBufferTemplateId(charBufferId, -1);
             writePackage(PACKET_TYPE_COMMAND, packet);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
-            }
-
-            while (reply != null) {
-                // ignore possible additional packets
-                reply = readPackage(defaultTimeout);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
 
-            int idx = 0;
-            int[] data;
-
-            while (idx < model.length) {
-                if (model.length - idx > dataPackageLength) {
-                    data = new int[dataPackageLength];
-                } else {
-                    data = new int[model.length - idx];
-                }
-                for (int i = 0; i < data.length; i++) {
-                    data[i] = model[idx];
-                    idx++;
-                }
-                if (idx < model.length) {
-                    writePackage(PACKET_TYPE_DATA, data);
-                } else {
-                    writePackage(PACKET_TYPE_ENDDATA, data);
-                }
+            byte[] modelData = new byte[model.length];
+            for (int i = 0; i < model.length; i++) {
+                modelData[i] = (byte) model[i];
             }
+            writeDataPackages(ByteBuffer.wrap(modelData));
 
             return Arrays.equals(model, downloadModel(charBufferId, defaultTimeout));
         }
     }
 
+    /**
+     * Asynchronously transfers a fingerprint template to the specified char
+     * buffer.
+     *
+     * @param charBufferId character file buffer number (1 or 2)
+     * @param model 1D array of characteristics
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with true if the characteristics have been
+     * uploaded successfully, false otherwise.
+     */
+    public CompletableFuture<Boolean> uploadModelAsync(final int charBufferId, final int[] model,
+            final long timeout) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return uploadModel(charBufferId, model, timeout);
+            }
+        });
+    }
+
     /**
      * Loads fingerprint template from Flash library specified location into
      * specified char buffer.
@@ -1562,21 +2937,44 @@ public class FingerprintSensor {
             throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int commandData[] = {IC_LOAD_CHAR, charBufferId, fingerId / 256, fingerId % 256};
+            byte[] commandData = {IC_LOAD_CHAR, (byte) charBufferId, (byte) (fingerId / 256),
+                (byte) (fingerId % 256)};
 
             // send command
+            setCharBufferTemplateId(charBufferId, -1);
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
+
+            setCharBufferTemplateId(charBufferId, fingerId);
         }
     }
 
+    /**
+     * Asynchronously loads fingerprint template from Flash library specified
+     * location into specified char buffer.
+     *
+     * @param fingerId Flash location of the template.
+     * @param charBufferId character file buffer number (1 or 2).
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed when the template has been loaded.
+     */
+    public CompletableFuture<Void> loadModelAsync(final int fingerId, final int charBufferId, final long timeout) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                loadModel(fingerId, charBufferId, timeout);
+                return null;
+            }
+        });
+    }
+
     /**
      * Stores template from specified char buffer in Flash fingerprint library
      * specified location.
@@ -1588,23 +2986,95 @@ public class FingerprintSensor {
      */
     public void storeModel(int fingerId, int charBufferId, long timeout)
             throws FingerprintSensorException {
+        storeModel(fingerId, charBufferId, true, timeout);
+    }
+
+    /**
+     * Stores template from specified char buffer in Flash fingerprint library
+     * specified location that is not reserved by {@link #allocateFreeId(long)}.
+     * The method is used by library maintenance that moves or restores
+     * templates, so that the template of the caller that holds the
+     * reservation is not overwritten later.
+     *
+     * @param fingerId Flash location of the template.
+     * @param charBufferId character file buffer number (1 or 2).
+     * @param timeout the timeout in milliseconds.
+     * @throws FingerprintSensorException if the location is reserved or the
+     * template cannot be stored.
+     */
+    void storeUnreservedModel(int fingerId, int charBufferId, long timeout) throws FingerprintSensorException {
+        storeModel(fingerId, charBufferId, false, timeout);
+    }
+
+    /**
+     * Stores template from specified char buffer in Flash fingerprint library
+     * specified location.
+     *
+     * @param fingerId Flash location of the template.
+     * @param charBufferId character file buffer number (1 or 2).
+     * @param holdsReservation true, if the caller holds the reservation of the
+     * location that is released by storing the template, false, if the
+     * location must not be reserved.
+     * @param timeout the timeout in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    private void storeModel(int fingerId, int charBufferId, boolean holdsReservation, long timeout)
+            throws FingerprintSensorException {
         synchronized (lock) {
+            if (!holdsReservation && reservedIds.get(fingerId)) {
+                throw new FingerprintSensorException("Id " + fingerId + " is reserved for another template.");
+            }
+
             // create command data
-            int commandData[] = {IC_STORE, charBufferId, fingerId / 256, fingerId % 256};
+            byte[] commandData = {IC_STORE, (byte) charBufferId, (byte) (fingerId / 256),
+                (byte) (fingerId % 256)};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
+
+            if (occupiedIds != null) {
+                occupiedIds.set(fingerId);
+            }
+            if (holdsReservation) {
+                reservedIds.clear(fingerId);
+            }
+            templateCache.invalidate(fingerId, 1);
+            for (int i = 0; i < charBufferTemplateIds.length; i++) {
+                if (charBufferTemplateIds[i] == fingerId) {
+                    charBufferTemplateIds[i] = -1;
+                }
+            }
+            setCharBufferTemplateId(charBufferId, fingerId);
         }
     }
 
+    /**
+     * Asynchronously stores template from specified char buffer in Flash
+     * fingerprint library specified location.
+     *
+     * @param fingerId Flash location of the template.
+     * @param charBufferId character file buffer number (1 or 2).
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed when the template has been stored.
+     */
+    public CompletableFuture<Void> storeModelAsync(final int fingerId, final int charBufferId, final long timeout) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                storeModel(fingerId, charBufferId, timeout);
+                return null;
+            }
+        });
+    }
+
     /**
      * Generates template by combining charBuffer1 and charBuffer2, the result
      * is stored back in both.
@@ -1615,17 +3085,18 @@ public class FingerprintSensor {
     public void createModel(long timeout) throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int commandData[] = {IC_CREATE_MODEL};
+            byte[] commandData = {IC_CREATE_MODEL};
 
             // send command
+            Arrays.fill(charBufferTemplateIds, -1);
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
         }
     }
@@ -1634,50 +3105,83 @@ public class FingerprintSensor {
      * Uploads captured image to the host computer.
      *
      * @param timeout the timeout in milliseconds.
-     * @return 2D array of integers representing pixels of the image.
+     * @return the image in the packed format sent by the sensor.
      * @throws FingerprintSensorException
      */
-    public int[][] getImageScan(long timeout) throws FingerprintSensorException {
+    public FingerprintImage downloadImage(long timeout) throws FingerprintSensorException {
+        return downloadImage(timeout, null);
+    }
+
+    /**
+     * Uploads captured image to the host computer. The listener is notified
+     * about received pixels and rows during the transfer. It is called by the
+     * downloading thread while the sensor is locked, so it must not use the
+     * sensor and should return quickly.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @param listener the listener notified about progress of the transfer, or
+     * null.
+     * @return the image in the packed format sent by the sensor.
+     * @throws FingerprintSensorException
+     */
+    public FingerprintImage downloadImage(long timeout, ImageDownloadListener listener)
+            throws FingerprintSensorException {
         synchronized (lock) {
             // create command data
-            int[] commandData = {IC_DOWNLOAD_IMAGE};
+            byte[] commandData = {IC_DOWNLOAD_IMAGE};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
-            }
-
-            int[][] imageBuffer = new int[288][256];
-            int idx = 0;
-            while (reply.type != PACKET_TYPE_ENDDATA) {
-                reply = readPackage(timeout);
-
-                for (int i = 0; i < reply.data.length; i++) {
-                    if (idx < 288 * 256) {
-                        // upper bits only
-                        imageBuffer[idx / 256][idx % 256] = (reply.data[i] / 16) * 16;
-                        idx++;
-                        imageBuffer[idx / 256][idx % 256] = (reply.data[i] % 16) * 16;
-                        idx++;
-                    }
-                }
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
 
-            while (reply != null) {
-                //ignore possible additional packets
-                reply = readPackage(defaultTimeout);
+            ImageRowAssembler rowAssembler = (listener != null) ? new ImageRowAssembler(listener) : null;
+            byte[] receivedData = readDataPackages(timeout, FingerprintImage.PACKED_LENGTH, rowAssembler);
+            if (receivedData.length != FingerprintImage.PACKED_LENGTH) {
+                receivedData = Arrays.copyOf(receivedData, FingerprintImage.PACKED_LENGTH);
             }
 
-            return imageBuffer;
+            return new FingerprintImage(receivedData);
         }
     }
 
+    /**
+     * Asynchronously uploads captured image to the host computer. The listener
+     * is notified by the I/O thread during the transfer while the sensor is
+     * locked.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @param listener the listener notified about progress of the transfer, or
+     * null.
+     * @return the future completed with the image.
+     */
+    public CompletableFuture<FingerprintImage> downloadImageAsync(final long timeout,
+            final ImageDownloadListener listener) {
+        return submit(new Callable<FingerprintImage>() {
+            @Override
+            public FingerprintImage call() {
+                return downloadImage(timeout, listener);
+            }
+        });
+    }
+
+    /**
+     * Uploads captured image to the host computer.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return 2D array of integers representing pixels of the image.
+     * @throws FingerprintSensorException
+     */
+    public int[][] getImageScan(long timeout) throws FingerprintSensorException {
+        return downloadImage(timeout).toScan();
+    }
+
     /**
      * Uploads captured image from the host computer to the image buffer.
      *
@@ -1687,50 +3191,38 @@ public class FingerprintSensor {
      * @throws FingerprintSensorException
      */
     public void uploadImageScan(long timeout, int[][] scan) throws FingerprintSensorException {
-        synchronized (lock) {
-            if (scan.length != 288 || scan[0].length != 256) {
-                throwFingerprintException(WRONG_SCAN_SIZE);
-            }
+        if (scan.length != 288 || scan[0].length != 256) {
+            throwFingerprintException(WRONG_SCAN_SIZE);
+        }
+
+        uploadImage(FingerprintImage.fromScan(scan), timeout);
+    }
 
+    /**
+     * Uploads image from the host computer to the image buffer of the sensor.
+     *
+     * @param image the image.
+     * @param timeout the timeout in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    public void uploadImage(FingerprintImage image, long timeout) throws FingerprintSensorException {
+        synchronized (lock) {
             // create command data
-            int[] commandData = {IC_UPLOAD_IMAGE};
+            byte[] commandData = {IC_UPLOAD_IMAGE};
 
             // send command
             writePackage(PACKET_TYPE_COMMAND, commandData);
 
             // receive command acknowledgement
             Package reply = readPackage(timeout);
-            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.data.length != 1)) {
+            if ((reply == null) || (reply.type != PACKET_TYPE_ACK) || (reply.length() != 1)) {
                 throwFingerprintException(-1);
-            } else if (reply.data[0] != CC_OK) {
-                throwFingerprintException(reply.data[0]);
-            }
-
-            while (reply != null) {
-                //ignore possible additional packets
-                reply = readPackage(defaultTimeout);
+            } else if (reply.get(0) != CC_OK) {
+                throwFingerprintException(reply.get(0));
             }
 
-            int idx = 0;
-            int[] data = new int[dataPackageLength];
-
-            while (idx < 288 * 256) {
-                for (int i = 0; i < data.length; i++) {
-                    data[i] = scan[idx / 256][idx % 256];
-                    idx++;
-                }
-
-                if (idx < 288 * 256) {
-                    writePackage(PACKET_TYPE_DATA, data);
-                } else {
-                    writePackage(PACKET_TYPE_ENDDATA, data);
-                }
-            }
-
-            while (reply != null) {
-                //ignore possible additional packets
-                reply = readPackage(defaultTimeout);
-            }
+            // send packed pixels without copying
+            writeDataPackages(image.asByteBuffer());
         }
     }
 
@@ -1739,13 +3231,13 @@ public class FingerprintSensor {
      */
     private void updatePackageProlog() {
         // header
-        packageProlog[0] = packageHeader / 256;
-        packageProlog[1] = packageHeader % 256;
+        packageProlog[0] = (byte) (packageHeader / 256);
+        packageProlog[1] = (byte) (packageHeader % 256);
 
         // module address
         long address = moduleAddress;
         for (int i = 0; i < 4; i++) {
-            packageProlog[5 - i] = (int) (address % 256);
+            packageProlog[5 - i] = (byte) (address % 256);
             address = address / 256;
         }
     }
@@ -1825,25 +3317,179 @@ public class FingerprintSensor {
         throw new FingerprintSensorException(message);
     }
 
-    private void writePackage(int type, int[] data) throws FingerprintSensorException {
+    /**
+     * Sends a package.
+     *
+     * @param type the package type.
+     * @param data the payload bytes.
+     * @throws FingerprintSensorException
+     */
+    private void writePackage(int type, byte[] data) throws FingerprintSensorException {
+        int frameLength = packageProlog.length + PACKAGE_FIELDS_LENGTH + data.length;
+        byte[] frame;
+        if (data.length <= MAX_COMMAND_LENGTH) {
+            if (commandFrames[data.length] == null) {
+                commandFrames[data.length] = new byte[frameLength];
+            }
+            frame = commandFrames[data.length];
+        } else {
+            frame = new byte[frameLength];
+        }
+
+        encodePackage(type, ByteBuffer.wrap(data), frame, 0);
         try {
-            serialPort.writeIntArray(packageProlog);
-            serialPort.writeInt(type);
-            int length = data.length + 2;
-            serialPort.writeInt(length / 256);
-            serialPort.writeInt(length % 256);
-            serialPort.writeIntArray(data);
+            serialPort.writeBytes(frame);
+        } catch (SerialPortException ex) {
+            throw new FingerprintSensorException("Failed to write to the serial port.", ex);
+        }
+    }
+
+    /**
+     * Receives data packages sent by the module after an acknowledged command.
+     * The transfer is completed by the end of data package. Afterwards, bytes
+     * received within a short quiet period are discarded.
+     *
+     * @param timeout the timeout for receiving a package in milliseconds.
+     * @param expectedLength the expected length of data in bytes, 0 if
+     * unknown.
+     * @return the received data.
+     * @throws FingerprintSensorException
+     */
+    private byte[] readDataPackages(long timeout, int expectedLength) throws FingerprintSensorException {
+        return readDataPackages(timeout, expectedLength, null);
+    }
+
+    /**
+     * Receives data packages sent by the module after an acknowledged command.
+     * The consumer is notified after each received package.
+     *
+     * @param timeout the timeout for receiving a package in milliseconds.
+     * @param expectedLength the expected length of data in bytes, 0 if
+     * unknown.
+     * @param consumer the consumer of received packages, or null.
+     * @return the received data.
+     * @throws FingerprintSensorException
+     */
+    private byte[] readDataPackages(long timeout, int expectedLength, DataPackageConsumer consumer)
+            throws FingerprintSensorException {
+        byte[] receivedData = new byte[Math.max(expectedLength, 2 * dataPackageLength)];
+        int idx = 0;
+
+        boolean endOfData = false;
+        while (!endOfData) {
+            Package reply = readPackage(timeout);
+            if ((reply == null) || ((reply.type != PACKET_TYPE_DATA) && (reply.type != PACKET_TYPE_ENDDATA))) {
+                throwFingerprintException(CC_PACKET_RECEIVE_ERR);
+            }
+
+            int length = reply.length();
+            // increase receivedData size
+            if (receivedData.length < idx + length) {
+                receivedData = Arrays.copyOf(receivedData, Math.max(2 * receivedData.length, idx + length));
+            }
 
-            int checksum = type + (length / 256) + (length % 256);
-            for (int dataByte : data) {
-                checksum += dataByte;
+            reply.data.get(receivedData, idx, length);
+            if (consumer != null) {
+                consumer.dataPackageReceived(receivedData, idx, length);
             }
+            idx += length;
+            endOfData = (reply.type == PACKET_TYPE_ENDDATA);
+        }
 
-            serialPort.writeInt(checksum / 256);
-            serialPort.writeInt(checksum % 256);
+        try {
+            // ignore possible additional bytes
+            serialPortReader.discardUntilQuiet(TRANSFER_QUIET_PERIOD);
         } catch (SerialPortException ex) {
-            throw new FingerprintSensorException("Failed to write to the serial port.", ex);
+            throw new FingerprintSensorException("Failed to read from the serial port.", ex);
         }
+
+        return (idx == receivedData.length) ? receivedData : Arrays.copyOf(receivedData, idx);
+    }
+
+    /**
+     * Sends data split to data packages of the maximal allowed length. The
+     * last package is sent as the end of data package. Several packages are
+     * sent by a single write to the serial port.
+     *
+     * @param data the buffer with data bytes between its position and limit.
+     * The buffer is read to its limit.
+     * @throws FingerprintSensorException
+     */
+    private void writeDataPackages(ByteBuffer data) throws FingerprintSensorException {
+        int offset = data.position();
+        int length = data.remaining();
+        int packageCount = (length + dataPackageLength - 1) / dataPackageLength;
+        int idx = 0;
+        while (idx < packageCount) {
+            int batchSize = Math.min(DATA_PACKAGES_PER_WRITE, packageCount - idx);
+            int dataStart = offset + idx * dataPackageLength;
+            int dataEnd = Math.min(dataStart + batchSize * dataPackageLength, offset + length);
+
+            int frameLength = batchSize * (packageProlog.length + PACKAGE_FIELDS_LENGTH) + (dataEnd - dataStart);
+            byte[] frame;
+            if (frameLength == dataBatchFrame.length) {
+                frame = dataBatchFrame;
+            } else {
+                frame = new byte[frameLength];
+                if (batchSize == DATA_PACKAGES_PER_WRITE) {
+                    dataBatchFrame = frame;
+                }
+            }
+
+            // encode packages of the batch
+            int frameIdx = 0;
+            for (int i = 0; i < batchSize; i++) {
+                int packageStart = dataStart + i * dataPackageLength;
+                int packageLength = Math.min(dataPackageLength, dataEnd - packageStart);
+                int type = (idx + i < packageCount - 1) ? PACKET_TYPE_DATA : PACKET_TYPE_ENDDATA;
+                data.limit(packageStart + packageLength);
+                frameIdx = encodePackage(type, data, frame, frameIdx);
+            }
+
+            try {
+                serialPort.writeBytes(frame);
+            } catch (SerialPortException ex) {
+                throw new FingerprintSensorException("Failed to write to the serial port.", ex);
+            }
+
+            idx += batchSize;
+        }
+
+        data.limit(offset + length);
+    }
+
+    /**
+     * Encodes a package to a frame. The checksum is computed while the payload
+     * is copied.
+     *
+     * @param type the package type.
+     * @param data the buffer with payload bytes between its position and
+     * limit. The buffer is read to its limit.
+     * @param frame the destination frame.
+     * @param frameOffset the position in the frame where the package starts.
+     * @return the position in the frame after the encoded package.
+     */
+    private int encodePackage(int type, ByteBuffer data, byte[] frame, int frameOffset) {
+        int length = data.remaining();
+        int idx = frameOffset;
+        System.arraycopy(packageProlog, 0, frame, idx, packageProlog.length);
+        idx += packageProlog.length;
+
+        int packageLength = length + 2;
+        frame[idx++] = (byte) type;
+        frame[idx++] = (byte) (packageLength / 256);
+        frame[idx++] = (byte) (packageLength % 256);
+
+        int checksum = type + (packageLength / 256) + (packageLength % 256);
+        data.get(frame, idx, length);
+        for (int i = idx; i < idx + length; i++) {
+            checksum += frame[i] & 0xFF;
+        }
+        idx += length;
+
+        frame[idx++] = (byte) (checksum / 256);
+        frame[idx++] = (byte) (checksum % 256);
+        return idx;
     }
 
     private Package readPackage(long timeout) throws FingerprintSensorException {
@@ -1862,7 +3508,7 @@ public class FingerprintSensor {
                 }
 
                 // check received byte with the expected value
-                if (packageProlog[prologMatchLength] == serialPortReader.readByte(remainingTime / 1_000_000)) {
+                if ((packageProlog[prologMatchLength] & 0xFF) == serialPortReader.readByte(remainingTime / 1_000_000)) {
                     prologMatchLength++;
                 } else {
                     prologMatchLength = 0;
@@ -1875,38 +3521,46 @@ public class FingerprintSensor {
             }
 
             // read package type and its length
-            int[] metadata = serialPortReader.readBytes(3, (timeout - (System.nanoTime() - startTime)) / 1_000_000);
-            if (metadata == null) {
+            int metadataSum = serialPortReader.readBytes(receiveFrame, 0, 3,
+                    (timeout - (System.nanoTime() - startTime)) / 1_000_000);
+            if (metadataSum < 0) {
                 return null;
             }
 
-            int packageLength = metadata[1] * 256 + metadata[2];
+            int type = receiveFrame[0] & 0xFF;
+            int packageLength = (receiveFrame[1] & 0xFF) * 256 + (receiveFrame[2] & 0xFF);
             if (packageLength < 2) {
                 return null;
             }
 
+            if (receiveFrame.length < packageLength + 3) {
+                byte[] newFrame = new byte[packageLength + 3];
+                System.arraycopy(receiveFrame, 0, newFrame, 0, 3);
+                receiveFrame = newFrame;
+            }
+
             // read package payload
-            int[] data = serialPortReader.readBytes(packageLength - 2,
+            int dataSum = serialPortReader.readBytes(receiveFrame, 3, packageLength - 2,
                     (timeout - (System.nanoTime() - startTime)) / 1_000_000);
+            if (dataSum < 0) {
+                return null;
+            }
 
             // read checksum
-            int[] checksumData = serialPortReader.readBytes(2, (timeout - (System.nanoTime() - startTime)) / 1_000_000);
-
-            // compute checksum
-            int checksum = 0;
-            for (int dataByte : metadata) {
-                checksum += dataByte;
-            }
-            for (int dataByte : data) {
-                checksum += dataByte;
+            int checksumOffset = packageLength + 1;
+            if (serialPortReader.readBytes(receiveFrame, checksumOffset, 2,
+                    (timeout - (System.nanoTime() - startTime)) / 1_000_000) < 0) {
+                return null;
             }
 
             // verify checksum
-            if ((checksumData[0] != checksum / 256) || (checksumData[1] != checksum % 256)) {
+            int checksum = metadataSum + dataSum;
+            if (((receiveFrame[checksumOffset] & 0xFF) != (checksum / 256) % 256)
+                    || ((receiveFrame[checksumOffset + 1] & 0xFF) != checksum % 256)) {
                 return null;
             }
 
-            return new Package(metadata[0], data);
+            return new Package(type, ByteBuffer.wrap(receiveFrame, 3, packageLength - 2).slice());
         } catch (SerialPortException ex) {
             throw new FingerprintSensorException("Failed to read from the serial port.", ex);
         }
@@ -0,0 +1,228 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Pool of fingerprint sensors. Submitted work is executed by the sensor with
+ * the least number of pending commands. The pool is intended for sensors with
+ * the same content of the module library, so that any of them can serve a
+ * search.
+ */
+public class FingerprintSensorPool {
+
+    /**
+     * Sensors of the pool.
+     */
+    private final List<FingerprintSensor> sensors;
+
+    /**
+     * Index of the sensor where the search for the least loaded sensor starts.
+     */
+    private int nextSensorIdx = 0;
+
+    /**
+     * Constructs a pool of sensors connected via given serial ports at default
+     * baud rate.
+     *
+     * @param serialPorts the serial ports.
+     */
+    public FingerprintSensorPool(String... serialPorts) {
+        List<FingerprintSensor> sensorList = new ArrayList<>();
+        for (String serialPort : serialPorts) {
+            sensorList.add(new FingerprintSensor(serialPort));
+        }
+
+        this.sensors = Collections.unmodifiableList(sensorList);
+    }
+
+    /**
+     * Constructs a pool of given sensors.
+     *
+     * @param sensors the sensors.
+     */
+    public FingerprintSensorPool(List<FingerprintSensor> sensors) {
+        this.sensors = Collections.unmodifiableList(new ArrayList<>(sensors));
+    }
+
+    /**
+     * Opens connection to all sensors of the pool. If a connection cannot be
+     * opened, all sensors are closed.
+     */
+    public void open() {
+        for (int i = 0; i < sensors.size(); i++) {
+            try {
+                sensors.get(i).open();
+            } catch (RuntimeException e) {
+                for (int j = 0; j < i; j++) {
+                    sensors.get(j).close();
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Closes connection to all sensors of the pool.
+     */
+    public void close() {
+        for (FingerprintSensor sensor : sensors) {
+            sensor.close();
+        }
+    }
+
+    /**
+     * @return the number of sensors in the pool.
+     */
+    public int getSize() {
+        return sensors.size();
+    }
+
+    /**
+     * Returns a sensor of the pool.
+     *
+     * @param index the index of the sensor.
+     * @return the sensor.
+     */
+    public FingerprintSensor getSensor(int index) {
+        return sensors.get(index);
+    }
+
+    /**
+     * @return the unmodifiable list of sensors in the pool.
+     */
+    public List<FingerprintSensor> getSensors() {
+        return sensors;
+    }
+
+    /**
+     * Returns the number of pending commands of a sensor.
+     *
+     * @param index the index of the sensor.
+     * @return the number of queued and running commands.
+     */
+    public int getQueueDepth(int index) {
+        return sensors.get(index).getQueuedCommandCount();
+    }
+
+    /**
+     * @return the numbers of pending commands of all sensors.
+     */
+    public int[] getQueueDepths() {
+        int[] result = new int[sensors.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = getQueueDepth(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether a sensor executes or has queued a command.
+     *
+     * @param index the index of the sensor.
+     * @return true, if the sensor is busy, false otherwise.
+     */
+    public boolean isBusy(int index) {
+        return getQueueDepth(index) > 0;
+    }
+
+    /**
+     * Submits work for execution by the least loaded sensor. The work is
+     * executed with exclusive access to the sensor.
+     *
+     * @param <T> the type of result.
+     * @param work the work that receives the selected sensor.
+     * @return the future completed with the result of the work.
+     */
+    public <T> CompletableFuture<T> submit(final Function<FingerprintSensor, T> work) {
+        synchronized (this) {
+            final FingerprintSensor sensor = selectSensor();
+            return sensor.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return work.apply(sensor);
+                }
+            });
+        }
+    }
+
+    /**
+     * Searches for a match for given characteristics in the module library of
+     * the least loaded sensor.
+     *
+     * @param characteristics the char file generated by a sensor.
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with the result, if the match was found, or
+     * null otherwise.
+     */
+    public CompletableFuture<SearchResult> search(final int[] characteristics, final long timeout) {
+        return submit(new Function<FingerprintSensor, SearchResult>() {
+            @Override
+            public SearchResult apply(FingerprintSensor sensor) {
+                if (!sensor.uploadModel(FingerprintSensor.CHAR_BUFFER1, characteristics, timeout)) {
+                    throw new FingerprintSensorException("Uploading of characteristics failed.");
+                }
+
+                return sensor.search(timeout);
+            }
+        });
+    }
+
+    /**
+     * Matches two characteristics on the least loaded sensor.
+     *
+     * @param characteristics1 the first char file generated by a sensor.
+     * @param characteristics2 the second char file generated by a sensor.
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with the matching score if characteristics
+     * match, or -1 if they do not.
+     */
+    public CompletableFuture<Integer> match(final int[] characteristics1, final int[] characteristics2,
+            final long timeout) {
+        return submit(new Function<FingerprintSensor, Integer>() {
+            @Override
+            public Integer apply(FingerprintSensor sensor) {
+                if (!sensor.uploadModel(FingerprintSensor.CHAR_BUFFER1, characteristics1, timeout)
+                        || !sensor.uploadModel(FingerprintSensor.CHAR_BUFFER2, characteristics2, timeout)) {
+                    throw new FingerprintSensorException("Uploading of characteristics failed.");
+                }
+
+                return sensor.match(timeout);
+            }
+        });
+    }
+
+    /**
+     * Selects the sensor with the least number of pending commands. Sensors
+     * with equal load are selected in round-robin order.
+     *
+     * @return the selected sensor.
+     */
+    private FingerprintSensor selectSensor() {
+        if (sensors.isEmpty()) {
+            throw new FingerprintSensorException("The pool contains no sensor.");
+        }
+
+        int selectedIdx = -1;
+        int selectedDepth = Integer.MAX_VALUE;
+        for (int i = 0; i < sensors.size(); i++) {
+            int idx = (nextSensorIdx + i) % sensors.size();
+            int depth = sensors.get(idx).getQueuedCommandCount();
+            if (depth < selectedDepth) {
+                selectedIdx = idx;
+                selectedDepth = depth;
+            }
+        }
+
+        nextSensorIdx = (selectedIdx + 1) % sensors.size();
+        return sensors.get(selectedIdx);
+    }
+}
@@ -2,35 +2,127 @@ package sk.upjs.zirro.fpm10sensor;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 public final class FingerprintUtils {
 
+    /**
+     * Format tag of a serialized template: tag, version, u16 length, raw bytes.
+     */
+    public static final int TEMPLATE_FORMAT_TAG = 0x54;
+
+    /**
+     * Format tag of a serialized scan: tag, version, u16 height, u16 width,
+     * pixels packed to 4-bit nibbles (two pixels per byte, the first pixel in
+     * the upper nibble).
+     */
+    public static final int SCAN_FORMAT_TAG = 0x53;
+
+    /**
+     * Version of the template and scan formats.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Raster values of TYPE_BYTE_GRAY images for gray levels, equal to values
+     * stored by setRGB.
+     */
+    private static final byte[] GRAY_TO_RASTER = new byte[256];
+
+    /**
+     * Gray levels of raster values of TYPE_BYTE_GRAY images, equal to values
+     * returned by getRGB.
+     */
+    private static final int[] RASTER_TO_GRAY = new int[256];
+
+    static {
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (int i = 0; i < 256; i++) {
+            probe.setRGB(0, 0, new Color(i, i, i).getRGB());
+            GRAY_TO_RASTER[i] = (byte) probe.getRaster().getSample(0, 0, 0);
+
+            probe.getRaster().setSample(0, 0, 0, i);
+            RASTER_TO_GRAY[i] = new Color(probe.getRGB(0, 0)).getBlue();
+        }
+    }
+
     public static BufferedImage fingerprintScanToImage(int[][] fingerprintScan) {
         int height = fingerprintScan.length;
         int width = fingerprintScan[0].length;
 
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] raster = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int idx = 0;
         for (int y = 0; y < height; y++) {
+            int[] row = fingerprintScan[y];
             for (int x = 0; x < width; x++) {
-                int pixel = fingerprintScan[y][x];
-                Color c = new Color(pixel % 256, pixel % 256, pixel % 256);
-                image.setRGB(x, y, c.getRGB());
+                raster[idx++] = GRAY_TO_RASTER[row[x] % 256];
             }
         }
 
         return image;
     }
 
+    public static BufferedImage fingerprintImageToImage(FingerprintImage fingerprintImage) {
+        BufferedImage image = new BufferedImage(FingerprintImage.WIDTH, FingerprintImage.HEIGHT,
+                BufferedImage.TYPE_BYTE_GRAY);
+        byte[] raster = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        ByteBuffer packedPixels = fingerprintImage.asByteBuffer();
+        int idx = 0;
+        while (packedPixels.hasRemaining()) {
+            int packedByte = packedPixels.get();
+            raster[idx++] = GRAY_TO_RASTER[packedByte & 0xF0];
+            raster[idx++] = GRAY_TO_RASTER[(packedByte & 0x0F) << 4];
+        }
+
+        return image;
+    }
+
     public static int[][] imageToFingerprintScan(BufferedImage image) {
         int width = image.getWidth();
         int height = image.getHeight();
         int[][] fingerprintScan = new int[height][width];
 
+        WritableRaster raster = image.getRaster();
+        if ((image.getType() == BufferedImage.TYPE_BYTE_GRAY) && (raster.getDataBuffer() instanceof DataBufferByte)
+                && (raster.getSampleModel() instanceof ComponentSampleModel)
+                && (raster.getSampleModelTranslateX() == 0) && (raster.getSampleModelTranslateY() == 0)) {
+            // read gray levels directly from the raster
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            byte[] data = dataBuffer.getData();
+            int pixelStride = sampleModel.getPixelStride();
+            int scanlineStride = sampleModel.getScanlineStride();
+            int rowOffset = dataBuffer.getOffset() + sampleModel.getOffset(0, 0);
+            for (int y = 0; y < height; y++) {
+                int[] row = fingerprintScan[y];
+                int idx = rowOffset;
+                for (int x = 0; x < width; x++) {
+                    row[x] = RASTER_TO_GRAY[data[idx] & 0xFF];
+                    idx += pixelStride;
+                }
+                rowOffset += scanlineStride;
+            }
+
+            return fingerprintScan;
+        }
+
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 Color c = new Color(image.getRGB(x, y));
@@ -39,7 +131,228 @@ public final class FingerprintUtils {
         }
         return fingerprintScan;
     }
-    
+
+    public static List<BufferedImage> fingerprintScansToImages(List<int[][]> fingerprintScans, ForkJoinPool pool) {
+        return convertAll(fingerprintScans, new Function<int[][], BufferedImage>() {
+            @Override
+            public BufferedImage apply(int[][] fingerprintScan) {
+                return fingerprintScanToImage(fingerprintScan);
+            }
+        }, pool);
+    }
+
+    public static List<BufferedImage> fingerprintScansToImages(List<int[][]> fingerprintScans) {
+        return fingerprintScansToImages(fingerprintScans, ForkJoinPool.commonPool());
+    }
+
+    public static List<BufferedImage> fingerprintImagesToImages(List<FingerprintImage> fingerprintImages,
+            ForkJoinPool pool) {
+        return convertAll(fingerprintImages, new Function<FingerprintImage, BufferedImage>() {
+            @Override
+            public BufferedImage apply(FingerprintImage fingerprintImage) {
+                return fingerprintImageToImage(fingerprintImage);
+            }
+        }, pool);
+    }
+
+    public static List<BufferedImage> fingerprintImagesToImages(List<FingerprintImage> fingerprintImages) {
+        return fingerprintImagesToImages(fingerprintImages, ForkJoinPool.commonPool());
+    }
+
+    public static List<int[][]> imagesToFingerprintScans(List<BufferedImage> images, ForkJoinPool pool) {
+        return convertAll(images, new Function<BufferedImage, int[][]>() {
+            @Override
+            public int[][] apply(BufferedImage image) {
+                return imageToFingerprintScan(image);
+            }
+        }, pool);
+    }
+
+    public static List<int[][]> imagesToFingerprintScans(List<BufferedImage> images) {
+        return imagesToFingerprintScans(images, ForkJoinPool.commonPool());
+    }
+
+    private static <S, T> List<T> convertAll(List<S> sources, final Function<S, T> conversion, ForkJoinPool pool) {
+        List<Callable<T>> tasks = new ArrayList<>(sources.size());
+        for (final S source : sources) {
+            tasks.add(new Callable<T>() {
+                @Override
+                public T call() {
+                    return conversion.apply(source);
+                }
+            });
+        }
+
+        List<T> results = new ArrayList<>(sources.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Conversion has been interrupted.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    public static int getSerializedTemplateLength(int[] template) {
+        return 4 + template.length;
+    }
+
+    public static void writeTemplate(ByteBuffer buffer, int[] template) {
+        if (template.length > 0xFFFF) {
+            throw new IllegalArgumentException("Template is too long.");
+        }
+
+        buffer.put((byte) TEMPLATE_FORMAT_TAG);
+        buffer.put((byte) FORMAT_VERSION);
+        buffer.putShort((short) template.length);
+        for (int value : template) {
+            buffer.put((byte) value);
+        }
+    }
+
+    public static int[] readTemplate(ByteBuffer buffer) {
+        checkFormat(buffer, TEMPLATE_FORMAT_TAG);
+        int length = buffer.getShort() & 0xFFFF;
+        int[] template = new int[length];
+        for (int i = 0; i < length; i++) {
+            template[i] = buffer.get() & 0xFF;
+        }
+
+        return template;
+    }
+
+    public static byte[] serializeTemplate(int[] template) {
+        ByteBuffer buffer = ByteBuffer.allocate(getSerializedTemplateLength(template));
+        writeTemplate(buffer, template);
+        return buffer.array();
+    }
+
+    public static int[] deserializeTemplate(byte[] data) {
+        return readTemplate(ByteBuffer.wrap(data));
+    }
+
+    public static int getSerializedScanLength(int[][] scan) {
+        int height = scan.length;
+        int width = (height > 0) ? scan[0].length : 0;
+        return 6 + (height * width + 1) / 2;
+    }
+
+    public static void writeScan(ByteBuffer buffer, int[][] scan) {
+        int height = scan.length;
+        int width = (height > 0) ? scan[0].length : 0;
+        if ((height > 0xFFFF) || (width > 0xFFFF)) {
+            throw new IllegalArgumentException("Scan is too large.");
+        }
+
+        buffer.put((byte) SCAN_FORMAT_TAG);
+        buffer.put((byte) FORMAT_VERSION);
+        buffer.putShort((short) height);
+        buffer.putShort((short) width);
+
+        // quantize pixels to 4 bits (as FingerprintImage does) and pack two
+        // consecutive pixels to one byte
+        int packedByte = 0;
+        boolean upperNibble = true;
+        for (int[] row : scan) {
+            if (row.length != width) {
+                throw new IllegalArgumentException("Rows of the scan have different lengths.");
+            }
+
+            for (int pixel : row) {
+                if (upperNibble) {
+                    packedByte = FingerprintImage.quantize(pixel) << 4;
+                } else {
+                    buffer.put((byte) (packedByte | FingerprintImage.quantize(pixel)));
+                }
+                upperNibble = !upperNibble;
+            }
+        }
+
+        if (!upperNibble) {
+            buffer.put((byte) packedByte);
+        }
+    }
+
+    public static int[][] readScan(ByteBuffer buffer) {
+        checkFormat(buffer, SCAN_FORMAT_TAG);
+        int height = buffer.getShort() & 0xFFFF;
+        int width = buffer.getShort() & 0xFFFF;
+        int[][] scan = new int[height][width];
+
+        int packedByte = 0;
+        boolean upperNibble = true;
+        for (int[] row : scan) {
+            for (int x = 0; x < width; x++) {
+                if (upperNibble) {
+                    packedByte = buffer.get() & 0xFF;
+                    row[x] = packedByte & 0xF0;
+                } else {
+                    row[x] = (packedByte & 0x0F) << 4;
+                }
+                upperNibble = !upperNibble;
+            }
+        }
+
+        return scan;
+    }
+
+    public static byte[] serializeScan(int[][] scan) {
+        ByteBuffer buffer = ByteBuffer.allocate(getSerializedScanLength(scan));
+        writeScan(buffer, scan);
+        return buffer.array();
+    }
+
+    public static int[][] deserializeScan(byte[] data) {
+        return readScan(ByteBuffer.wrap(data));
+    }
+
+    public static int getSerializedImageLength(FingerprintImage image) {
+        return 6 + FingerprintImage.PACKED_LENGTH;
+    }
+
+    public static void writeImage(ByteBuffer buffer, FingerprintImage image) {
+        buffer.put((byte) SCAN_FORMAT_TAG);
+        buffer.put((byte) FORMAT_VERSION);
+        buffer.putShort((short) image.getHeight());
+        buffer.putShort((short) image.getWidth());
+        buffer.put(image.asByteBuffer());
+    }
+
+    public static FingerprintImage readImage(ByteBuffer buffer) {
+        checkFormat(buffer, SCAN_FORMAT_TAG);
+        int height = buffer.getShort() & 0xFFFF;
+        int width = buffer.getShort() & 0xFFFF;
+        if ((height != FingerprintImage.HEIGHT) || (width != FingerprintImage.WIDTH)) {
+            throw new IllegalArgumentException("Unexpected size of serialized image.");
+        }
+
+        return FingerprintImage.fromPackedPixels(buffer);
+    }
+
+    private static void checkFormat(ByteBuffer buffer, int formatTag) {
+        int tag = buffer.get() & 0xFF;
+        int version = buffer.get() & 0xFF;
+        if (tag != formatTag) {
+            throw new IllegalArgumentException("Unexpected format of serialized data.");
+        }
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version + " of serialized data.");
+        }
+    }
+
+    /**
+     * @deprecated Java serialization inflates the data and it is unsafe to
+     * deserialize, use {@link #serializeTemplate(int[])} instead.
+     */
+    @Deprecated
     public static byte[] convertIntArrayToBytes(int[] array) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
@@ -52,6 +365,10 @@ public final class FingerprintUtils {
             return baos.toByteArray();
     }
     
+    /**
+     * @deprecated Java serialization inflates the data and it is unsafe to deserialize, use {@link #deserializeTemplate(byte[])} instead.
+     */
+    @Deprecated
     public static int[] convertBytesToIntArray(byte[] array) {
         ByteArrayInputStream fis = new ByteArrayInputStream(array);
         int[] result = null;
@@ -64,6 +381,10 @@ public final class FingerprintUtils {
         return result;
     }
     
+    /**
+     * @deprecated Java serialization inflates the data and it is unsafe to deserialize, use {@link #serializeScan(int[][])} instead.
+     */
+    @Deprecated
     public static byte[] convert2DIntArrayToBytes(int[][] array) {
           ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
@@ -76,6 +397,10 @@ public final class FingerprintUtils {
             return baos.toByteArray();
     }
     
+    /**
+     * @deprecated Java serialization inflates the data and it is unsafe to deserialize, use {@link #deserializeScan(byte[])} instead.
+     */
+    @Deprecated
     public static int[][] convertBytesTo2DIntArray(byte[] array) {
         ByteArrayInputStream fis = new ByteArrayInputStream(array);
         int[][] result = null;
@@ -0,0 +1,274 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Optimizer that moves the most frequently matched templates to the hot range
+ * at the beginning of the module library. The hot range is searched first, so
+ * that frequent users are matched in the shortest scan. Callers use stable
+ * logical ids of templates that are translated to physical ids by the
+ * {@link TemplateIdMap} of the optimizer.
+ *
+ * A template is moved by copying it to a free slot that is not reserved by
+ * {@link FingerprintSensor#allocateFreeId(long)} and deleting the original
+ * slot, so that no template is lost if the optimization is interrupted. The
+ * map of ids should be persisted (see {@link TemplateIdMap#TemplateIdMap(File)}),
+ * otherwise promoted templates are reported by their physical ids after a
+ * restart of the host. An interrupted move is finished by
+ * {@link #recover(long)}.
+ */
+public class HotTemplateOptimizer {
+
+    /**
+     * The sensor.
+     */
+    private final FingerprintSensor sensor;
+
+    /**
+     * The number of templates in the hot range.
+     */
+    private final int hotRangeCount;
+
+    /**
+     * The map between logical and physical ids of templates.
+     */
+    private final TemplateIdMap idMap;
+
+    /**
+     * Numbers of matches of templates identified by logical ids (guarded by
+     * this).
+     */
+    private final Map<Integer, Integer> hitCounts = new HashMap<>();
+
+    /**
+     * Constructs an optimizer and sets the hot range of the sensor.
+     *
+     * @param sensor the sensor.
+     * @param hotRangeCount the number of templates in the hot range.
+     * @param idMap the map between logical and physical ids of templates.
+     */
+    public HotTemplateOptimizer(FingerprintSensor sensor, int hotRangeCount, TemplateIdMap idMap) {
+        if (hotRangeCount < 1) {
+            throw new IllegalArgumentException("The hot range must contain at least one template.");
+        }
+
+        this.sensor = sensor;
+        this.hotRangeCount = hotRangeCount;
+        this.idMap = idMap;
+        sensor.setHotRange(0, hotRangeCount);
+    }
+
+    /**
+     * Constructs an optimizer with a map of ids that is not persisted and
+     * sets the hot range of the sensor.
+     *
+     * @param sensor the sensor.
+     * @param hotRangeCount the number of templates in the hot range.
+     */
+    public HotTemplateOptimizer(FingerprintSensor sensor, int hotRangeCount) {
+        this(sensor, hotRangeCount, new TemplateIdMap());
+    }
+
+    /**
+     * @return the map between logical and physical ids of templates.
+     */
+    public TemplateIdMap getIdMap() {
+        return idMap;
+    }
+
+    /**
+     * @return the number of templates in the hot range.
+     */
+    public int getHotRangeCount() {
+        return hotRangeCount;
+    }
+
+    /**
+     * Finishes a move interrupted during previous optimization.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    public void recover(final long timeout) throws FingerprintSensorException {
+        sensor.execute(new Callable<Void>() {
+            @Override
+            public Void call() {
+                idMap.finishPendingMove(sensor, sensor.readIndexTable(timeout), timeout);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Records a match of a template.
+     *
+     * @param logicalId the logical id of the matched template.
+     */
+    public synchronized void recordHit(int logicalId) {
+        Integer hitCount = hitCounts.get(logicalId);
+        hitCounts.put(logicalId, (hitCount != null) ? hitCount + 1 : 1);
+    }
+
+    /**
+     * Returns the number of recorded matches of a template.
+     *
+     * @param logicalId the logical id of the template.
+     * @return the number of matches.
+     */
+    public synchronized int getHitCount(int logicalId) {
+        Integer hitCount = hitCounts.get(logicalId);
+        return (hitCount != null) ? hitCount : 0;
+    }
+
+    /**
+     * Search for a match for characteristics stored in char buffer1 in the
+     * hot range first and then in the rest of the module library. The match
+     * is recorded.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the result with the logical id of the template, if the match
+     * was found, null otherwise.
+     * @throws FingerprintSensorException
+     */
+    public SearchResult search(final long timeout) throws FingerprintSensorException {
+        return sensor.execute(new Callable<SearchResult>() {
+            @Override
+            public SearchResult call() {
+                SearchResult result = sensor.searchTiered(timeout);
+                if (result == null) {
+                    return null;
+                }
+
+                int logicalId = idMap.getLogicalId(result.getId());
+                recordHit(logicalId);
+                return sensor.new SearchResult(logicalId, result.getMatchScore());
+            }
+        });
+    }
+
+    /**
+     * Moves the most frequently matched templates to the hot range. Templates
+     * in the hot range with lower number of matches are moved to free slots
+     * outside the hot range. After the optimization, the recorded numbers of
+     * matches are halved, so that the hot range adapts to recent matches.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of templates moved to the hot range.
+     * @throws FingerprintSensorException
+     */
+    public int optimize(final long timeout) throws FingerprintSensorException {
+        return sensor.execute(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return promoteTemplates(timeout);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously moves the most frequently matched templates to the hot
+     * range.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the future completed with the number of templates moved to the
+     * hot range.
+     * @see #optimize(long)
+     */
+    public CompletableFuture<Integer> optimizeAsync(final long timeout) {
+        return sensor.submitJob(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return promoteTemplates(timeout);
+            }
+        });
+    }
+
+    /**
+     * Moves the most frequently matched templates to the hot range. The method
+     * is invoked with exclusive access to the sensor.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of templates moved to the hot range.
+     */
+    private int promoteTemplates(long timeout) {
+        int capacity = sensor.getLibraryCapacity();
+        int hotRangeEnd = Math.min(hotRangeCount, capacity);
+        BitSet occupiedIds = sensor.readIndexTable(timeout);
+        idMap.finishPendingMove(sensor, occupiedIds, timeout);
+
+        // select the most frequently matched templates
+        final Map<Integer, Integer> hitCountsCopy;
+        synchronized (this) {
+            hitCountsCopy = new HashMap<>(hitCounts);
+        }
+        List<Integer> rankedIds = new ArrayList<>(hitCountsCopy.keySet());
+        Collections.sort(rankedIds, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer id1, Integer id2) {
+                return Integer.compare(hitCountsCopy.get(id2), hitCountsCopy.get(id1));
+            }
+        });
+        if (rankedIds.size() > hotRangeEnd) {
+            rankedIds = rankedIds.subList(0, hotRangeEnd);
+        }
+
+        int movedCount = 0;
+        for (int logicalId : rankedIds) {
+            int physicalId = idMap.getPhysicalId(logicalId);
+            if ((physicalId < hotRangeEnd) || !occupiedIds.get(physicalId)) {
+                continue;
+            }
+
+            // find a free slot or the least frequently matched template in the hot range
+            int hotId = sensor.nextFreeId(occupiedIds, 0);
+            if (hotId >= hotRangeEnd) {
+                hotId = -1;
+                int hotIdHitCount = hitCountsCopy.get(logicalId);
+                for (int id = 0; id < hotRangeEnd; id++) {
+                    Integer hitCount = hitCountsCopy.get(idMap.getLogicalId(id));
+                    int count = (hitCount != null) ? hitCount : 0;
+                    if (count < hotIdHitCount) {
+                        hotId = id;
+                        hotIdHitCount = count;
+                    }
+                }
+
+                if (hotId < 0) {
+                    continue;
+                }
+
+                // move the less frequently matched template out of the hot range
+                int freeId = sensor.nextFreeId(occupiedIds, hotRangeEnd);
+                if (freeId >= capacity) {
+                    break;
+                }
+
+                idMap.moveTemplate(sensor, hotId, freeId, occupiedIds, timeout);
+            }
+
+            idMap.moveTemplate(sensor, physicalId, hotId, occupiedIds, timeout);
+            movedCount++;
+        }
+
+        // age recorded matches
+        synchronized (this) {
+            for (Map.Entry<Integer, Integer> entry : hitCounts.entrySet()) {
+                entry.setValue(entry.getValue() / 2);
+            }
+            hitCounts.values().removeAll(Collections.singleton(0));
+        }
+
+        return movedCount;
+    }
+}
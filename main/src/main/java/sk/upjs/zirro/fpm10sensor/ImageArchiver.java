@@ -0,0 +1,275 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Archiver that encodes and writes fingerprint images to files by a
+ * background thread, so that the sensor is released as soon as an image has
+ * been downloaded. The number of images waiting for archival is bounded:
+ * when the queue is full, submitting of an image blocks until the writer
+ * catches up.
+ */
+public class ImageArchiver {
+
+    /**
+     * Format of archived images.
+     */
+    public enum Format {
+        /**
+         * Packed 4-bit pixels in the scan format of {@link FingerprintUtils}.
+         */
+        RAW_PACKED,
+        /**
+         * PNG image with 8-bit gray levels.
+         */
+        PNG,
+        /**
+         * Packed 4-bit pixels in the scan format of {@link FingerprintUtils}
+         * compressed by GZIP.
+         */
+        COMPRESSED
+    }
+
+    /**
+     * Image waiting for archival.
+     */
+    private static final class ArchivalTask {
+
+        /**
+         * The image.
+         */
+        final FingerprintImage image;
+
+        /**
+         * The target file.
+         */
+        final File file;
+
+        /**
+         * The future completed when the image has been written.
+         */
+        final CompletableFuture<File> result = new CompletableFuture<>();
+
+        /**
+         * Constructs an archival task.
+         *
+         * @param image the image.
+         * @param file the target file.
+         */
+        ArchivalTask(FingerprintImage image, File file) {
+            this.image = image;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Default max number of images waiting for archival.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /**
+     * The task that terminates the writer thread.
+     */
+    private static final ArchivalTask END_OF_TASKS = new ArchivalTask(null, null);
+
+    /**
+     * The format of archived images.
+     */
+    private final Format format;
+
+    /**
+     * Images waiting for archival.
+     */
+    private final BlockingQueue<ArchivalTask> tasks;
+
+    /**
+     * The writer thread.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Number of submitted images that have not been written yet (guarded by
+     * this).
+     */
+    private int pendingCount = 0;
+
+    /**
+     * Indicates whether the archiver has been closed (guarded by this).
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructs an image archiver.
+     *
+     * @param format the format of archived images.
+     * @param queueCapacity the max number of images waiting for archival.
+     */
+    public ImageArchiver(Format format, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Capacity of the queue must be positive.");
+        }
+
+        this.format = format;
+        this.tasks = new ArrayBlockingQueue<>(queueCapacity);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processTasks();
+            }
+        }, "FPM10 image archiver");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Constructs an image archiver with default capacity of the queue.
+     *
+     * @param format the format of archived images.
+     */
+    public ImageArchiver(Format format) {
+        this(format, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @return the format of archived images.
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of submitted images that have not been written yet.
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Submits an image for archival. If the queue of images is full, the
+     * method blocks until the writer takes an image.
+     *
+     * @param image the image.
+     * @param file the target file.
+     * @return the future completed with the file when the image has been
+     * written.
+     * @throws FingerprintSensorException if the archiver has been closed or
+     * the thread has been interrupted.
+     */
+    public CompletableFuture<File> archive(FingerprintImage image, File file) throws FingerprintSensorException {
+        ArchivalTask task = new ArchivalTask(image, file);
+        synchronized (this) {
+            if (closed) {
+                throw new FingerprintSensorException("The image archiver has been closed.");
+            }
+            pendingCount++;
+        }
+
+        try {
+            tasks.put(task);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                pendingCount--;
+                notifyAll();
+            }
+            Thread.currentThread().interrupt();
+            throw new FingerprintSensorException("Archival of image has been interrupted.", e);
+        }
+
+        return task.result;
+    }
+
+    /**
+     * Closes the archiver. Images submitted before closing are written and the
+     * method waits until the writer thread terminates.
+     *
+     * @throws InterruptedException if the thread has been interrupted while
+     * waiting.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // wait until accepted images are written
+            while (pendingCount > 0) {
+                wait();
+            }
+        }
+
+        tasks.put(END_OF_TASKS);
+        writerThread.join();
+    }
+
+    /**
+     * Writes an image to a file in given format.
+     *
+     * @param image the image.
+     * @param file the target file.
+     * @param format the format of the image.
+     * @throws IOException if writing failed.
+     */
+    public static void writeImage(FingerprintImage image, File file, Format format) throws IOException {
+        if (format == Format.PNG) {
+            if (!ImageIO.write(FingerprintUtils.fingerprintImageToImage(image), "png", file)) {
+                throw new IOException("No PNG writer is available.");
+            }
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(FingerprintUtils.getSerializedImageLength(image));
+        FingerprintUtils.writeImage(buffer, image);
+
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            if (format == Format.COMPRESSED) {
+                try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+                    gzipOutput.write(buffer.array(), 0, buffer.position());
+                }
+            } else {
+                output.write(buffer.array(), 0, buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Writes submitted images in the writer thread.
+     */
+    private void processTasks() {
+        while (true) {
+            ArchivalTask task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException ignore) {
+                continue;
+            }
+
+            if (task == END_OF_TASKS) {
+                return;
+            }
+
+            try {
+                writeImage(task.image, task.file, format);
+                task.result.complete(task.file);
+            } catch (Throwable e) {
+                task.result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    pendingCount--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener notified about progress of an image download. The listener is
+ * invoked by the thread downloading the image after each received data
+ * package, so that processing of the image can overlap the transfer. Bytes
+ * received meanwhile are buffered, but the listener should not block.
+ * <p>
+ * The listener is called while the sensor is locked. It must not call methods
+ * of the sensor, and other threads using the sensor wait until it returns.
+ */
+public interface ImageDownloadListener {
+
+	/**
+	 * Notifies about received packed pixels.
+	 *
+	 * @param packedPixels
+	 *            the read-only buffer with received packed pixels (two pixels
+	 *            per byte, the first pixel in the upper nibble).
+	 * @param offset
+	 *            the position of the first received byte in the packed image.
+	 */
+	public void imageDataReceived(ByteBuffer packedPixels, int offset);
+
+	/**
+	 * Notifies about a completely received row of the image.
+	 *
+	 * @param y
+	 *            the y-coordinate of the row.
+	 * @param row
+	 *            the gray levels of pixels in the row. The array is reused for
+	 *            next rows.
+	 */
+	public void imageRowReceived(int y, int[] row);
+
+}
@@ -0,0 +1,584 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Export and import of the module library to an archive file. The archive
+ * consists of a header and a sequence of records, each containing the id of a
+ * template, the template and the CRC32 checksum of the record. The archive is
+ * terminated by an end record with the number of template records. Records are
+ * written incrementally, so that an interrupted export can be resumed: the
+ * archive is truncated after the last valid record and templates already
+ * contained in the archive are skipped.
+ *
+ * An archive is imported only if it is complete: an archive with invalid
+ * header, a damaged record or without the end record is rejected before any
+ * template is stored.
+ *
+ * Transfers of templates over the serial link are pipelined with reading and
+ * writing of the archive by a separate thread.
+ */
+public class LibraryArchive {
+
+    /**
+     * Record of the archive.
+     */
+    private static final class Record {
+
+        /**
+         * The id of the template.
+         */
+        final int id;
+
+        /**
+         * The template.
+         */
+        final int[] template;
+
+        /**
+         * Constructs a record.
+         *
+         * @param id the id of the template.
+         * @param template the template.
+         */
+        Record(int id, int[] template) {
+            this.id = id;
+            this.template = template;
+        }
+    }
+
+    /**
+     * The magic number of the archive.
+     */
+    private static final int ARCHIVE_MAGIC = 0x46504D4C;
+
+    /**
+     * The version of the archive format.
+     */
+    private static final int ARCHIVE_VERSION = 2;
+
+    /**
+     * The length of the archive header in bytes.
+     */
+    private static final int HEADER_LENGTH = 5;
+
+    /**
+     * The id field of the end record.
+     */
+    private static final int END_RECORD_ID = 0xFFFF;
+
+    /**
+     * The record marking the end of the queue of records.
+     */
+    private static final Record END_OF_RECORDS = new Record(-1, null);
+
+    /**
+     * The max number of records queued between the sensor and the archive.
+     */
+    private static final int QUEUE_CAPACITY = 32;
+
+    /**
+     * Milliseconds between checks of a failure of the pipeline thread.
+     */
+    private static final long QUEUE_POLL_INTERVAL = 100;
+
+    /**
+     * The sensor.
+     */
+    private final FingerprintSensor sensor;
+
+    /**
+     * Constructs an archive of the module library of a sensor.
+     *
+     * @param sensor the sensor.
+     */
+    public LibraryArchive(FingerprintSensor sensor) {
+        this.sensor = sensor;
+    }
+
+    /**
+     * Exports all templates stored in the module library to an archive.
+     *
+     * @param archiveFile the archive file.
+     * @param resume true to append templates missing in an existing archive,
+     * false to create a new archive.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of exported templates.
+     * @throws FingerprintSensorException
+     */
+    public int exportLibrary(final File archiveFile, final boolean resume, final long timeout)
+            throws FingerprintSensorException {
+        return sensor.execute(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return exportTemplates(archiveFile, resume, timeout);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously exports all templates stored in the module library to an
+     * archive.
+     *
+     * @param archiveFile the archive file.
+     * @param resume true to append templates missing in an existing archive,
+     * false to create a new archive.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the future completed with the number of exported templates.
+     * @see #exportLibrary(File, boolean, long)
+     */
+    public CompletableFuture<Integer> exportLibraryAsync(final File archiveFile, final boolean resume,
+            final long timeout) {
+        return sensor.submitJob(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return exportTemplates(archiveFile, resume, timeout);
+            }
+        });
+    }
+
+    /**
+     * Imports all templates from an archive to the module library. Templates
+     * are stored at their ids from the archive. The archive is verified before
+     * the first template is stored. The import can be resumed by importing the
+     * archive again.
+     *
+     * @param archiveFile the archive file.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of imported templates.
+     * @throws FingerprintSensorException if the archive is not complete or
+     * valid, or the import failed.
+     */
+    public int importLibrary(final File archiveFile, final long timeout) throws FingerprintSensorException {
+        return sensor.execute(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return importTemplates(archiveFile, timeout);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously imports all templates from an archive to the module
+     * library.
+     *
+     * @param archiveFile the archive file.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the future completed with the number of imported templates.
+     * @see #importLibrary(File, long)
+     */
+    public CompletableFuture<Integer> importLibraryAsync(final File archiveFile, final long timeout) {
+        return sensor.submitJob(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return importTemplates(archiveFile, timeout);
+            }
+        });
+    }
+
+    /**
+     * Exports templates to an archive. The method is invoked with exclusive
+     * access to the sensor.
+     *
+     * @param archiveFile the archive file.
+     * @param resume true to append templates missing in an existing archive.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of exported templates.
+     * @throws Exception if the export failed.
+     */
+    private int exportTemplates(File archiveFile, boolean resume, long timeout) throws Exception {
+        final BitSet archivedIds = new BitSet();
+        boolean append = false;
+        if (resume && archiveFile.exists()) {
+            long validLength = readArchive(archiveFile, null, archivedIds, false);
+            if (validLength >= HEADER_LENGTH) {
+                try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+                    raf.setLength(validLength);
+                }
+                append = true;
+            }
+        }
+
+        final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(archiveFile, append)));
+        final BlockingQueue<Record> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final PipelineThread writer = new PipelineThread("FPM10 archive writer") {
+            @Override
+            protected void process() throws Exception {
+                CRC32 crc = new CRC32();
+                int recordCount = archivedIds.cardinality();
+                while (true) {
+                    Record record = records.take();
+                    if (record == END_OF_RECORDS) {
+                        writeEndRecord(output, recordCount, crc);
+                        return;
+                    }
+
+                    writeRecord(output, record, crc);
+                    recordCount++;
+                }
+            }
+        };
+
+        try {
+            if (!append) {
+                output.writeInt(ARCHIVE_MAGIC);
+                output.writeByte(ARCHIVE_VERSION);
+            }
+
+            writer.start();
+            int exportedCount = 0;
+            BitSet occupiedIds = sensor.readIndexTable(timeout);
+            for (int id = occupiedIds.nextSetBit(0); id >= 0; id = occupiedIds.nextSetBit(id + 1)) {
+                if (!archivedIds.get(id)) {
+                    writer.enqueue(records, new Record(id, sensor.readTemplate(id, timeout)));
+                    exportedCount++;
+                }
+            }
+
+            writer.enqueue(records, END_OF_RECORDS);
+            writer.finish();
+            return exportedCount;
+        } finally {
+            // the writer is stopped before the stream is closed, since it can
+            // still be writing a record
+            writer.cancel();
+            output.close();
+        }
+    }
+
+    /**
+     * Imports templates from an archive. The method is invoked with exclusive
+     * access to the sensor.
+     *
+     * @param archiveFile the archive file.
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of imported templates.
+     * @throws Exception if the import failed.
+     */
+    private int importTemplates(final File archiveFile, long timeout) throws Exception {
+        // verify the archive, so that a damaged archive is not partially
+        // imported
+        readArchive(archiveFile, null, null, true);
+
+        final BlockingQueue<Record> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final PipelineThread reader = new PipelineThread("FPM10 archive reader") {
+            @Override
+            protected void process() throws Exception {
+                try {
+                    readArchive(archiveFile, records, null, true);
+                } finally {
+                    records.put(END_OF_RECORDS);
+                }
+            }
+        };
+
+        try {
+            reader.start();
+            int importedCount = 0;
+            while (true) {
+                Record record = reader.dequeue(records);
+                if (record == END_OF_RECORDS) {
+                    break;
+                }
+
+                if (!sensor.uploadModel(FingerprintSensor.CHAR_BUFFER1, record.template, timeout)) {
+                    throw new FingerprintSensorException("Uploading of template " + record.id + " failed.");
+                }
+                sensor.storeUnreservedModel(record.id, FingerprintSensor.CHAR_BUFFER1, timeout);
+                importedCount++;
+            }
+
+            reader.finish();
+            return importedCount;
+        } finally {
+            reader.cancel();
+        }
+    }
+
+    /**
+     * Reads records of an archive. In the strict mode, the archive must be
+     * complete and valid. Otherwise, records are read until the first damaged
+     * record, the end of the file or the end record.
+     *
+     * @param archiveFile the archive file.
+     * @param records the queue for read records, or null if the records are
+     * not queued.
+     * @param ids the set where ids of read templates are added, or null.
+     * @param strict true, if the archive must be complete and valid.
+     * @return the length of the valid part of the archive without the end
+     * record in bytes, 0 if the archive header is not valid.
+     * @throws FingerprintSensorException if the archive is not complete or
+     * valid in the strict mode.
+     * @throws IOException if reading of the archive failed.
+     * @throws InterruptedException if the thread has been interrupted while
+     * waiting for free space in the queue.
+     */
+    private static long readArchive(File archiveFile, BlockingQueue<Record> records, BitSet ids, boolean strict)
+            throws IOException, InterruptedException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(archiveFile)))) {
+            try {
+                if ((input.readInt() != ARCHIVE_MAGIC) || (input.readUnsignedByte() != ARCHIVE_VERSION)) {
+                    return rejectArchive(archiveFile, "invalid header", strict);
+                }
+            } catch (EOFException e) {
+                return rejectArchive(archiveFile, "invalid header", strict);
+            }
+
+            long validLength = HEADER_LENGTH;
+            int recordCount = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                Record record;
+                try {
+                    int id = input.readUnsignedShort();
+                    int length = input.readUnsignedShort();
+                    byte[] data = new byte[length];
+                    input.readFully(data);
+                    long checksum = input.readInt() & 0xFFFFFFFFL;
+
+                    if (checksum != computeChecksum(crc, id, data)) {
+                        rejectArchive(archiveFile, "damaged record " + (recordCount + 1), strict);
+                        break;
+                    }
+
+                    if (id == END_RECORD_ID) {
+                        if (strict) {
+                            if ((length != 4) || (((data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16
+                                    | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)) != recordCount)) {
+                                rejectArchive(archiveFile, "invalid number of records", true);
+                            }
+                            if (input.read() >= 0) {
+                                rejectArchive(archiveFile, "data after the end record", true);
+                            }
+                        }
+                        break;
+                    }
+
+                    int[] template = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        template[i] = data[i] & 0xFF;
+                    }
+                    record = new Record(id, template);
+                    validLength += 8 + length;
+                    recordCount++;
+                } catch (EOFException e) {
+                    rejectArchive(archiveFile, "missing end record", strict);
+                    break;
+                }
+
+                if (ids != null) {
+                    ids.set(record.id);
+                }
+                if (records != null) {
+                    records.put(record);
+                }
+            }
+
+            return validLength;
+        }
+    }
+
+    /**
+     * Reports an invalid archive.
+     *
+     * @param archiveFile the archive file.
+     * @param reason the reason why the archive is not valid.
+     * @param strict true, if the archive is rejected.
+     * @return 0 for an archive that is not rejected.
+     * @throws FingerprintSensorException if the archive is rejected.
+     */
+    private static long rejectArchive(File archiveFile, String reason, boolean strict)
+            throws FingerprintSensorException {
+        if (strict) {
+            throw new FingerprintSensorException("Archive " + archiveFile + " is not valid: " + reason + ".");
+        }
+
+        return 0;
+    }
+
+    /**
+     * Writes the end record to an archive.
+     *
+     * @param output the archive output stream.
+     * @param recordCount the number of template records in the archive.
+     * @param crc the checksum calculator.
+     * @throws IOException if writing failed.
+     */
+    private static void writeEndRecord(DataOutputStream output, int recordCount, CRC32 crc) throws IOException {
+        byte[] data = {(byte) (recordCount >> 24), (byte) (recordCount >> 16), (byte) (recordCount >> 8),
+            (byte) recordCount};
+
+        output.writeShort(END_RECORD_ID);
+        output.writeShort(data.length);
+        output.write(data);
+        output.writeInt((int) computeChecksum(crc, END_RECORD_ID, data));
+    }
+
+    /**
+     * Writes a record to an archive.
+     *
+     * @param output the archive output stream.
+     * @param record the record.
+     * @param crc the checksum calculator.
+     * @throws IOException if writing failed.
+     */
+    private static void writeRecord(DataOutputStream output, Record record, CRC32 crc) throws IOException {
+        byte[] data = new byte[record.template.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) record.template[i];
+        }
+
+        output.writeShort(record.id);
+        output.writeShort(data.length);
+        output.write(data);
+        output.writeInt((int) computeChecksum(crc, record.id, data));
+    }
+
+    /**
+     * Computes the checksum of a record.
+     *
+     * @param crc the checksum calculator.
+     * @param id the id of the template.
+     * @param data the bytes of the template.
+     * @return the checksum.
+     */
+    private static long computeChecksum(CRC32 crc, int id, byte[] data) {
+        crc.reset();
+        crc.update(id >> 8);
+        crc.update(id);
+        crc.update(data.length >> 8);
+        crc.update(data.length);
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Thread processing records on the other side of a queue. A failure of the
+     * thread is reported to the sensor side of the pipeline.
+     */
+    private abstract static class PipelineThread extends Thread {
+
+        /**
+         * The failure of the thread, null if the thread has not failed.
+         */
+        private volatile Exception failure = null;
+
+        /**
+         * Constructs a pipeline thread.
+         *
+         * @param name the name of the thread.
+         */
+        PipelineThread(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                process();
+            } catch (InterruptedException ignore) {
+                // the pipeline has been cancelled
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Processes records.
+         *
+         * @throws Exception if the processing failed.
+         */
+        protected abstract void process() throws Exception;
+
+        /**
+         * Adds a record to the queue processed by this thread.
+         *
+         * @param records the queue.
+         * @param record the record.
+         * @throws Exception if the thread has failed.
+         */
+        void enqueue(BlockingQueue<Record> records, Record record) throws Exception {
+            while (!records.offer(record, QUEUE_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        }
+
+        /**
+         * Takes a record from the queue filled by this thread.
+         *
+         * @param records the queue.
+         * @return the record.
+         * @throws Exception if the thread has failed.
+         */
+        Record dequeue(BlockingQueue<Record> records) throws Exception {
+            while (true) {
+                Record record = records.poll(QUEUE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    return record;
+                }
+
+                checkFailure();
+            }
+        }
+
+        /**
+         * Waits until the thread completes the processing.
+         *
+         * @throws Exception if the thread has failed.
+         */
+        void finish() throws Exception {
+            join();
+            checkFailure();
+        }
+
+        /**
+         * Interrupts the thread and waits until it terminates. The interrupt
+         * status of the current thread is preserved.
+         */
+        void cancel() {
+            interrupt();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Throws the failure of the thread, if any.
+         *
+         * @throws Exception if the thread has failed.
+         */
+        private void checkFailure() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Compaction of the module library. Templates scattered over the library are
+ * moved to a dense range starting at id 0, so that searches can be limited to
+ * the occupied prefix of the library. Callers use stable logical ids of
+ * templates that are translated to physical ids by the {@link TemplateIdMap}
+ * of the compactor. The map can be shared with a {@link HotTemplateOptimizer};
+ * templates in the hot range of the sensor are not moved and free slots of
+ * the hot range are not filled by compaction. Ids reserved by
+ * {@link FingerprintSensor#allocateFreeId(long)} are never used as targets of
+ * moved templates.
+ *
+ * The map and the pending move are stored in the state file of the map before
+ * the move starts and after it completes. If the compaction is interrupted
+ * (e.g., by a power failure), the pending move is finished by
+ * {@link #recover(long)}, so that no template is lost.
+ */
+public class LibraryCompactor {
+
+    /**
+     * The sensor.
+     */
+    private final FingerprintSensor sensor;
+
+    /**
+     * The map between logical and physical ids of templates.
+     */
+    private final TemplateIdMap idMap;
+
+    /**
+     * The number of physical ids that contain all templates, -1 if unknown.
+     */
+    private volatile int occupiedPrefixLength = -1;
+
+    /**
+     * Constructs a compactor with its own map of ids. If the state file
+     * exists, the map of ids and the pending move are restored from the file.
+     *
+     * @param sensor the sensor.
+     * @param stateFile the file storing the map of ids and the pending move.
+     * @throws FingerprintSensorException
+     */
+    public LibraryCompactor(FingerprintSensor sensor, File stateFile) throws FingerprintSensorException {
+        this(sensor, new TemplateIdMap(stateFile));
+    }
+
+    /**
+     * Constructs a compactor that uses given map of ids, e.g., the map of a
+     * {@link HotTemplateOptimizer}.
+     *
+     * @param sensor the sensor.
+     * @param idMap the map between logical and physical ids of templates.
+     */
+    public LibraryCompactor(FingerprintSensor sensor, TemplateIdMap idMap) {
+        this.sensor = sensor;
+        this.idMap = idMap;
+    }
+
+    /**
+     * @return the map between logical and physical ids of templates.
+     */
+    public TemplateIdMap getIdMap() {
+        return idMap;
+    }
+
+    /**
+     * @return the number of physical ids from id 0 that contained all
+     * templates after the last compaction, or -1 if the library has not been
+     * compacted yet. Templates stored after the compaction can be beyond the
+     * prefix until the library is compacted again.
+     */
+    public int getOccupiedPrefixLength() {
+        return occupiedPrefixLength;
+    }
+
+    /**
+     * Finishes a move interrupted during previous compaction.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    public void recover(final long timeout) throws FingerprintSensorException {
+        sensor.execute(new Callable<Void>() {
+            @Override
+            public Void call() {
+                idMap.finishPendingMove(sensor, sensor.readIndexTable(timeout), timeout);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Moves all templates to a dense range starting at id 0. Each move
+     * relocates the template with the highest physical id to the lowest free
+     * id. The hot range of the sensor is skipped.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of moved templates.
+     * @throws FingerprintSensorException
+     */
+    public int compact(final long timeout) throws FingerprintSensorException {
+        return sensor.execute(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return compactLibrary(timeout);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously moves all templates to a dense range starting at id 0.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the future completed with the number of moved templates.
+     * @see #compact(long)
+     */
+    public CompletableFuture<Integer> compactAsync(final long timeout) {
+        return sensor.submitJob(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return compactLibrary(timeout);
+            }
+        });
+    }
+
+    /**
+     * Search for a match for characteristics stored in char buffer1 in the
+     * occupied prefix of the module library. The prefix is extended by
+     * templates stored after the last compaction according to the occupancy
+     * cached by the sensor. If the library has not been compacted yet, the
+     * whole library is searched.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return the result with the logical id of the template, if the match
+     * was found, null otherwise.
+     * @throws FingerprintSensorException
+     */
+    public SearchResult search(final long timeout) throws FingerprintSensorException {
+        return sensor.execute(new Callable<SearchResult>() {
+            @Override
+            public SearchResult call() {
+                int prefixLength = occupiedPrefixLength;
+                if (prefixLength >= 0) {
+                    prefixLength = Math.max(prefixLength, sensor.getOccupiedIds(timeout).length());
+                }
+
+                SearchResult result;
+                if (prefixLength < 0) {
+                    result = sensor.search(timeout);
+                } else if (prefixLength == 0) {
+                    result = null;
+                } else {
+                    result = sensor.search(0, prefixLength, timeout);
+                }
+
+                if (result == null) {
+                    return null;
+                }
+
+                return sensor.new SearchResult(idMap.getLogicalId(result.getId()), result.getMatchScore());
+            }
+        });
+    }
+
+    /**
+     * Compacts the library. The method is invoked with exclusive access to the
+     * sensor.
+     *
+     * @param timeout the timeout of each command in milliseconds.
+     * @return the number of moved templates.
+     */
+    private int compactLibrary(long timeout) {
+        BitSet occupiedIds = sensor.readIndexTable(timeout);
+        idMap.finishPendingMove(sensor, occupiedIds, timeout);
+
+        int hotRangeStart = sensor.getHotRangeStart();
+        int hotRangeEnd = hotRangeStart + sensor.getHotRangeCount();
+        int movedCount = 0;
+        while (true) {
+            int freeId = sensor.nextFreeId(occupiedIds, 0);
+            if ((freeId >= hotRangeStart) && (freeId < hotRangeEnd)) {
+                freeId = sensor.nextFreeId(occupiedIds, hotRangeEnd);
+            }
+
+            // templates in the hot range are kept in place
+            int lastId = occupiedIds.length() - 1;
+            if ((lastId >= hotRangeStart) && (lastId < hotRangeEnd)) {
+                lastId = (hotRangeStart > 0) ? occupiedIds.previousSetBit(hotRangeStart - 1) : -1;
+            }
+
+            if (lastId < freeId) {
+                break;
+            }
+
+            idMap.moveTemplate(sensor, lastId, freeId, occupiedIds, timeout);
+            movedCount++;
+        }
+
+        occupiedPrefixLength = occupiedIds.length();
+        return movedCount;
+    }
+}
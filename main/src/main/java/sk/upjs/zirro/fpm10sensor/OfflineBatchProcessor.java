@@ -0,0 +1,533 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Batch processor of fingerprint images stored in files. Images are read and
+ * decoded by worker threads ahead of the sensor, so that the sensor processes
+ * an image while the next images are being prepared. The sensor is locked
+ * only while an item is processed, so that other commands can be executed
+ * between items.
+ */
+public class OfflineBatchProcessor {
+
+    /**
+     * Request to enroll a template combined from two images.
+     */
+    public static final class Enrollment {
+
+        /**
+         * The id of the new template.
+         */
+        private final int fingerprintId;
+
+        /**
+         * The file with the first image.
+         */
+        private final File imageFile1;
+
+        /**
+         * The file with the second image.
+         */
+        private final File imageFile2;
+
+        /**
+         * Constructs an enrollment request.
+         *
+         * @param fingerprintId the id of the new template.
+         * @param imageFile1 the file with the first image.
+         * @param imageFile2 the file with the second image.
+         */
+        public Enrollment(int fingerprintId, File imageFile1, File imageFile2) {
+            this.fingerprintId = fingerprintId;
+            this.imageFile1 = imageFile1;
+            this.imageFile2 = imageFile2;
+        }
+
+        /**
+         * @return the id of the new template.
+         */
+        public int getFingerprintId() {
+            return fingerprintId;
+        }
+
+        /**
+         * @return the file with the first image.
+         */
+        public File getImageFile1() {
+            return imageFile1;
+        }
+
+        /**
+         * @return the file with the second image.
+         */
+        public File getImageFile2() {
+            return imageFile2;
+        }
+    }
+
+    /**
+     * Result of processing of a batch item.
+     *
+     * @param <T> the type of result.
+     */
+    public static final class ItemResult<T> {
+
+        /**
+         * The index of the item in the batch.
+         */
+        private final int index;
+
+        /**
+         * The image files of the item.
+         */
+        private final List<File> imageFiles;
+
+        /**
+         * The result of the item.
+         */
+        private final T result;
+
+        /**
+         * The exception that caused failure of the item, null if the item
+         * succeeded.
+         */
+        private final Throwable exception;
+
+        /**
+         * The time of processing by the sensor in milliseconds.
+         */
+        private final long sensorTime;
+
+        /**
+         * Constructs a result of a batch item.
+         *
+         * @param index the index of the item in the batch.
+         * @param imageFiles the image files of the item.
+         * @param result the result of the item.
+         * @param exception the exception that caused failure of the item.
+         * @param sensorTime the time of processing by the sensor in
+         * milliseconds.
+         */
+        ItemResult(int index, List<File> imageFiles, T result, Throwable exception, long sensorTime) {
+            this.index = index;
+            this.imageFiles = imageFiles;
+            this.result = result;
+            this.exception = exception;
+            this.sensorTime = sensorTime;
+        }
+
+        /**
+         * @return the index of the item in the batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the unmodifiable list of image files of the item.
+         */
+        public List<File> getImageFiles() {
+            return imageFiles;
+        }
+
+        /**
+         * @return the result of the item.
+         */
+        public T getResult() {
+            return result;
+        }
+
+        /**
+         * @return the exception that caused failure of the item, null if the
+         * item succeeded.
+         */
+        public Throwable getException() {
+            return exception;
+        }
+
+        /**
+         * @return true, if the item has been processed successfully, false
+         * otherwise.
+         */
+        public boolean isSuccessful() {
+            return exception == null;
+        }
+
+        /**
+         * @return the time of processing by the sensor in milliseconds.
+         */
+        public long getSensorTime() {
+            return sensorTime;
+        }
+    }
+
+    /**
+     * Report of a processed batch.
+     *
+     * @param <T> the type of item results.
+     */
+    public static final class Report<T> {
+
+        /**
+         * Results of items in the order of the batch.
+         */
+        private final List<ItemResult<T>> itemResults;
+
+        /**
+         * The duration of the batch in milliseconds.
+         */
+        private final long elapsedTime;
+
+        /**
+         * Constructs a report of a batch.
+         *
+         * @param itemResults the results of items.
+         * @param elapsedTime the duration of the batch in milliseconds.
+         */
+        Report(List<ItemResult<T>> itemResults, long elapsedTime) {
+            this.itemResults = Collections.unmodifiableList(itemResults);
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * @return the unmodifiable list of item results in the order of the
+         * batch.
+         */
+        public List<ItemResult<T>> getItemResults() {
+            return itemResults;
+        }
+
+        /**
+         * @return the number of processed items.
+         */
+        public int getItemCount() {
+            return itemResults.size();
+        }
+
+        /**
+         * @return the number of successfully processed items.
+         */
+        public int getSuccessCount() {
+            int count = 0;
+            for (ItemResult<T> itemResult : itemResults) {
+                if (itemResult.isSuccessful()) {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * @return the number of failed items.
+         */
+        public int getFailureCount() {
+            return getItemCount() - getSuccessCount();
+        }
+
+        /**
+         * @return the duration of the batch in milliseconds.
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        /**
+         * @return the number of processed items per second.
+         */
+        public double getThroughput() {
+            return (elapsedTime > 0) ? itemResults.size() * 1000.0 / elapsedTime : 0;
+        }
+    }
+
+    /**
+     * Processing of items of a batch.
+     *
+     * @param <S> the type of items.
+     * @param <T> the type of item results.
+     */
+    private interface ItemProcessor<S, T> {
+
+        /**
+         * @param item the item.
+         * @return the image files of the item.
+         */
+        List<File> getImageFiles(S item);
+
+        /**
+         * Processes the prepared images of an item by the sensor. The method is
+         * invoked with exclusive access to the sensor.
+         *
+         * @param item the item.
+         * @param images the images of the item.
+         * @return the result of the item.
+         */
+        T process(S item, FingerprintImage[] images);
+    }
+
+    /**
+     * The sensor.
+     */
+    private final FingerprintSensor sensor;
+
+    /**
+     * The workers that read and decode images.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The max number of items prepared ahead of the sensor.
+     */
+    private final int prefetchCount;
+
+    /**
+     * Constructs a batch processor.
+     *
+     * @param sensor the sensor.
+     * @param workerCount the number of threads that read and decode images.
+     * @param prefetchCount the max number of items prepared ahead of the
+     * sensor.
+     */
+    public OfflineBatchProcessor(FingerprintSensor sensor, int workerCount, int prefetchCount) {
+        if ((workerCount < 1) || (prefetchCount < 1)) {
+            throw new IllegalArgumentException("Number of workers and prefetched items must be positive.");
+        }
+
+        this.sensor = sensor;
+        this.prefetchCount = prefetchCount;
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FPM10 batch worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Constructs a batch processor with a worker per available processor.
+     *
+     * @param sensor the sensor.
+     */
+    public OfflineBatchProcessor(FingerprintSensor sensor) {
+        this(sensor, Runtime.getRuntime().availableProcessors(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Searches for a match for each image in a directory. Files are processed
+     * in the order of their names, files that are not images are skipped.
+     *
+     * @param directory the directory with images.
+     * @param listener the listener notified after each item, or null.
+     * @return the report with results of searches.
+     * @throws FingerprintSensorException if the directory cannot be read.
+     */
+    public Report<SearchResult> search(File directory, Consumer<ItemResult<SearchResult>> listener)
+            throws FingerprintSensorException {
+        return search(listImageFiles(directory), listener);
+    }
+
+    /**
+     * Searches for a match for each image file.
+     *
+     * @param imageFiles the image files.
+     * @param listener the listener notified after each item, or null.
+     * @return the report with results of searches. The result of an item is
+     * null, if no match was found.
+     */
+    public Report<SearchResult> search(Iterable<File> imageFiles, Consumer<ItemResult<SearchResult>> listener) {
+        return processBatch(imageFiles.iterator(), new ItemProcessor<File, SearchResult>() {
+            @Override
+            public List<File> getImageFiles(File imageFile) {
+                return Collections.singletonList(imageFile);
+            }
+
+            @Override
+            public SearchResult process(File imageFile, FingerprintImage[] images) {
+                return sensor.searchImage(images[0]);
+            }
+        }, listener);
+    }
+
+    /**
+     * Enrolls templates combined from pairs of images.
+     *
+     * @param enrollments the enrollment requests.
+     * @param listener the listener notified after each item, or null.
+     * @return the report with results of enrollments.
+     */
+    public Report<Void> enroll(Iterable<Enrollment> enrollments, Consumer<ItemResult<Void>> listener) {
+        return processBatch(enrollments.iterator(), new ItemProcessor<Enrollment, Void>() {
+            @Override
+            public List<File> getImageFiles(Enrollment enrollment) {
+                return Collections.unmodifiableList(
+                        Arrays.asList(enrollment.getImageFile1(), enrollment.getImageFile2()));
+            }
+
+            @Override
+            public Void process(Enrollment enrollment, FingerprintImage[] images) {
+                sensor.enroll(enrollment.getFingerprintId(), images[0], images[1]);
+                return null;
+            }
+        }, listener);
+    }
+
+    /**
+     * Reads an image file and converts it to fingerprint image.
+     *
+     * @param imageFile the image file.
+     * @return the fingerprint image.
+     * @throws IOException if the file cannot be read or decoded.
+     */
+    public static FingerprintImage readImage(File imageFile) throws IOException {
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null) {
+            throw new IOException("Unsupported format of image " + imageFile + ".");
+        }
+
+        return FingerprintImage.fromScan(FingerprintUtils.imageToFingerprintScan(image));
+    }
+
+    /**
+     * Processes items of a batch. Images of next items are prepared by
+     * workers while the sensor processes the current item.
+     *
+     * @param <S> the type of items.
+     * @param <T> the type of item results.
+     * @param items the items.
+     * @param processor the processing of items.
+     * @param listener the listener notified after each item, or null.
+     * @return the report of the batch.
+     */
+    private <S, T> Report<T> processBatch(Iterator<S> items, final ItemProcessor<S, T> processor,
+            Consumer<ItemResult<T>> listener) {
+        long startTime = System.nanoTime();
+        List<ItemResult<T>> itemResults = new ArrayList<>();
+        ArrayDeque<S> preparedItems = new ArrayDeque<>();
+        ArrayDeque<Future<FingerprintImage[]>> preparedImages = new ArrayDeque<>();
+
+        int index = 0;
+        while (true) {
+            // keep the prefetch window full
+            while ((preparedItems.size() < prefetchCount) && items.hasNext()) {
+                S item = items.next();
+                final List<File> imageFiles = processor.getImageFiles(item);
+                preparedItems.add(item);
+                preparedImages.add(workers.submit(new Callable<FingerprintImage[]>() {
+                    @Override
+                    public FingerprintImage[] call() throws IOException {
+                        FingerprintImage[] images = new FingerprintImage[imageFiles.size()];
+                        for (int i = 0; i < images.length; i++) {
+                            images[i] = readImage(imageFiles.get(i));
+                        }
+
+                        return images;
+                    }
+                }));
+            }
+
+            if (preparedItems.isEmpty()) {
+                break;
+            }
+
+            final S item = preparedItems.poll();
+            Future<FingerprintImage[]> imagesFuture = preparedImages.poll();
+            T result = null;
+            Throwable exception = null;
+            long sensorTime = 0;
+            try {
+                final FingerprintImage[] images = imagesFuture.get();
+                long sensorStartTime = System.nanoTime();
+                try {
+                    result = sensor.execute(new Callable<T>() {
+                        @Override
+                        public T call() {
+                            return processor.process(item, images);
+                        }
+                    });
+                } finally {
+                    sensorTime = (System.nanoTime() - sensorStartTime) / 1_000_000;
+                }
+            } catch (ExecutionException e) {
+                exception = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FingerprintSensorException("Batch processing has been interrupted.", e);
+            } catch (RuntimeException e) {
+                exception = e;
+            }
+
+            ItemResult<T> itemResult = new ItemResult<>(index++, processor.getImageFiles(item), result, exception,
+                    sensorTime);
+            itemResults.add(itemResult);
+            if (listener != null) {
+                listener.accept(itemResult);
+            }
+        }
+
+        return new Report<>(itemResults, (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * Lists image files in a directory in the order of their names.
+     *
+     * @param directory the directory.
+     * @return the list of image files.
+     * @throws FingerprintSensorException if the directory cannot be read.
+     */
+    private static List<File> listImageFiles(File directory) throws FingerprintSensorException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new FingerprintSensorException("Directory " + directory + " cannot be read.");
+        }
+
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+
+        List<File> imageFiles = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            int dotIdx = name.lastIndexOf('.');
+            if (file.isFile() && (dotIdx >= 0)
+                    && suffixes.contains(name.substring(dotIdx + 1).toLowerCase(Locale.ROOT))) {
+                imageFiles.add(file);
+            }
+        }
+
+        Collections.sort(imageFiles);
+        return imageFiles;
+    }
+}
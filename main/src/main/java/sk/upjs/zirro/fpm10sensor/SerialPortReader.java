@@ -1,18 +1,33 @@
 package sk.upjs.zirro.fpm10sensor;
 
+import java.util.concurrent.TimeUnit;
+
 import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
 
 /**
  * Helper class for reading and buffering data from a serial port.
+ *
+ * The reader works in one of two receive modes. In the polling mode, the
+ * waiting thread repeatedly reads the serial port and sleeps when no data are
+ * available. In the event-driven mode, received bytes are pushed into the
+ * buffer by RXCHAR events of the serial port and waiting threads are woken up
+ * immediately.
  */
-class SerialPortReader {
+class SerialPortReader implements SerialPortEventListener {
 
 	/**
 	 * The serial port.
 	 */
 	private final SerialPort serialPort;
 
+	/**
+	 * Indicates whether received bytes are delivered by serial port events.
+	 */
+	private final boolean eventDriven;
+
 	/**
 	 * Nanoseconds to sleep when no data are available.
 	 */
@@ -23,6 +38,11 @@ class SerialPortReader {
 	 */
 	private final long millisSleep;
 
+	/**
+	 * Synchronization lock guarding the receive buffer.
+	 */
+	private final Object lock = new Object();
+
 	/**
 	 * The receive buffer.
 	 */
@@ -43,26 +63,70 @@ class SerialPortReader {
 	 */
 	private int availableBytes = 0;
 
+	/**
+	 * Exception thrown while reading the serial port in the event handler.
+	 */
+	private SerialPortException receiveException = null;
+
 	/**
 	 * Constructs buffered serial port reader.
-	 * 
+	 *
 	 * @param serialPort
 	 *            the serial port.
 	 * @param baudRate
 	 *            the baud rate of the serial port.
+	 * @param eventDriven
+	 *            true, if received bytes should be delivered by serial port
+	 *            events, false for polling the serial port.
+	 * @throws SerialPortException
+	 *             thrown when registration of the event listener failed.
 	 */
-	public SerialPortReader(SerialPort serialPort, long baudRate) {
+	public SerialPortReader(SerialPort serialPort, long baudRate, boolean eventDriven) throws SerialPortException {
 		this.serialPort = serialPort;
+		this.eventDriven = eventDriven;
 
 		// compute sleep interval with respect to baud rate.
 		long nanosPerByte = Math.max((1_000_000_000L / baudRate) * 8, 100);
 		nanosSleep = (int) (nanosPerByte % 1_000_000);
 		millisSleep = nanosPerByte / 1_000_000;
+
+		if (eventDriven) {
+			serialPort.addEventListener(this, SerialPort.MASK_RXCHAR);
+		}
+	}
+
+	/**
+	 * Handles serial port events - moves received bytes to the receive buffer
+	 * and wakes up waiting readers.
+	 */
+	@Override
+	public void serialEvent(SerialPortEvent event) {
+		if (!event.isRXCHAR() || (event.getEventValue() <= 0)) {
+			return;
+		}
+
+		byte[] data = null;
+		SerialPortException exception = null;
+		try {
+			data = serialPort.readBytes();
+		} catch (SerialPortException e) {
+			exception = e;
+		}
+
+		synchronized (lock) {
+			if (exception != null) {
+				receiveException = exception;
+			} else if (data != null) {
+				storeBytes(data);
+			}
+
+			lock.notifyAll();
+		}
 	}
 
 	/**
 	 * Reads a single byte from the serial port.
-	 * 
+	 *
 	 * @param timeout
 	 *            the timeout in milliseconds.
 	 * @return the read byte or -1 if the operation failed (e.g., timeout
@@ -71,43 +135,87 @@ class SerialPortReader {
 	 *             thrown when reading from port failed.
 	 */
 	public int readByte(long timeout) throws SerialPortException {
-		ensureBytes(1, timeout);
-		if (availableBytes == 0) {
-			return -1;
-		}
+		synchronized (lock) {
+			ensureBytes(1, timeout);
+			if (availableBytes == 0) {
+				return -1;
+			}
 
-		return readByteFromBuffer();
+			return readByteFromBuffer();
+		}
 	}
 
 	/**
-	 * Reads given number of bytes from the serial port.
+	 * Reads given number of bytes from the serial port into an array. The
+	 * bytes are copied from the receive buffer in at most two chunks and their
+	 * sum is computed from the copied bytes.
 	 * 
+	 * @param destination
+	 *            the array where received bytes are stored.
+	 * @param offset
+	 *            the position in the array where the first byte is stored.
 	 * @param count
 	 *            the number of requested received bytes.
 	 * @param timeout
 	 *            the timeout in milliseconds.
-	 * @return the array with received data or null if the operation failed
-	 *         (e.g., timeout expired, thread has been interrupted, etc.).
+	 * @return the sum of received bytes (as unsigned values) or -1 if the
+	 *         operation failed (e.g., timeout expired, thread has been
+	 *         interrupted, etc.).
 	 * @throws SerialPortException
 	 *             thrown when reading from port failed.
 	 */
-	public int[] readBytes(int count, long timeout) throws SerialPortException {
-		ensureBytes(count, timeout);
-		if (availableBytes < count) {
-			return null;
-		}
+	public int readBytes(byte[] destination, int offset, int count, long timeout) throws SerialPortException {
+		synchronized (lock) {
+			ensureBytes(count, timeout);
+			if (availableBytes < count) {
+				return -1;
+			}
+
+			// copy bytes in at most two chunks (the buffer is circular)
+			int firstChunk = Math.min(count, buffer.length - readIdx);
+			System.arraycopy(buffer, readIdx, destination, offset, firstChunk);
+			System.arraycopy(buffer, 0, destination, offset + firstChunk, count - firstChunk);
+
+			int sum = 0;
+			for (int i = offset; i < offset + count; i++) {
+				sum += destination[i] & 0xFF;
+			}
 
-		int[] result = new int[count];
-		for (int i = 0; i < count; i++) {
-			result[i] = readByteFromBuffer();
+			readIdx = (readIdx + count) % buffer.length;
+			availableBytes -= count;
+			return sum;
 		}
+	}
 
-		return result;
+	/**
+	 * Discards received bytes until no byte is received for given quiet
+	 * period.
+	 * 
+	 * @param quietPeriod
+	 *            the quiet period in milliseconds.
+	 * @return the number of discarded bytes.
+	 * @throws SerialPortException
+	 *             thrown when reading from port failed.
+	 */
+	public int discardUntilQuiet(long quietPeriod) throws SerialPortException {
+		synchronized (lock) {
+			int discardedBytes = 0;
+			while (true) {
+				discardedBytes += availableBytes;
+				readIdx = writeIdx;
+				availableBytes = 0;
+
+				ensureBytes(1, quietPeriod);
+				if (availableBytes == 0) {
+					return discardedBytes;
+				}
+			}
+		}
 	}
 
 	/**
 	 * Reads a single byte from the read buffer.
-	 * 
+	 *
 	 * @return the byte (as integer).
 	 */
 	private int readByteFromBuffer() {
@@ -127,7 +235,7 @@ class SerialPortReader {
 
 	/**
 	 * Ensures given number of bytes available in the read buffer.
-	 * 
+	 *
 	 * @param byteCount
 	 *            the count of bytes.
 	 * @param timeout
@@ -146,6 +254,28 @@ class SerialPortReader {
 		// read bytes
 		long startTime = System.nanoTime();
 		while (byteCount > availableBytes) {
+			if (eventDriven) {
+				if (receiveException != null) {
+					SerialPortException exception = receiveException;
+					receiveException = null;
+					throw exception;
+				}
+
+				long remainingTime = timeout - (System.nanoTime() - startTime);
+				if (remainingTime <= 0) {
+					return;
+				}
+
+				// wait until the event handler delivers new bytes
+				try {
+					TimeUnit.NANOSECONDS.timedWait(lock, remainingTime);
+				} catch (InterruptedException exception) {
+					return;
+				}
+
+				continue;
+			}
+
 			if (System.nanoTime() - startTime > timeout) {
 				return;
 			}
@@ -161,17 +291,27 @@ class SerialPortReader {
 				continue;
 			}
 
-			for (byte b : data) {
-				buffer[writeIdx] = b;
-				availableBytes++;
-				writeIdx++;
-				if (writeIdx >= buffer.length) {
-					writeIdx = 0;
-				}
+			storeBytes(data);
+		}
+	}
 
-				if (availableBytes == buffer.length) {
-					enlargeBuffer();
-				}
+	/**
+	 * Stores received bytes in the receive buffer.
+	 *
+	 * @param data
+	 *            the received bytes.
+	 */
+	private void storeBytes(byte[] data) {
+		for (byte b : data) {
+			buffer[writeIdx] = b;
+			availableBytes++;
+			writeIdx++;
+			if (writeIdx >= buffer.length) {
+				writeIdx = 0;
+			}
+
+			if (availableBytes == buffer.length) {
+				enlargeBuffer();
 			}
 		}
 	}
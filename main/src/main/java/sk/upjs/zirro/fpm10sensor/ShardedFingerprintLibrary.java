@@ -0,0 +1,190 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Fingerprint library partitioned across module libraries of several sensors
+ * (shards). Templates are identified by global ids: the ids of the first shard
+ * are followed by the ids of the second shard, etc. A search is executed on
+ * all shards in parallel and the best match is returned.
+ */
+public class ShardedFingerprintLibrary {
+
+    /**
+     * Sensors holding partitions of the library.
+     */
+    private final List<FingerprintSensor> shards;
+
+    /**
+     * The first global id of each shard, the last element is the capacity of
+     * the library.
+     */
+    private final int[] shardOffsets;
+
+    /**
+     * Constructs a sharded library. The connection to all sensors must be
+     * open, since the capacity of shards is given by the capacity of their
+     * module libraries.
+     *
+     * @param shards the sensors holding partitions of the library.
+     */
+    public ShardedFingerprintLibrary(List<FingerprintSensor> shards) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+
+        shardOffsets = new int[this.shards.size() + 1];
+        for (int i = 0; i < this.shards.size(); i++) {
+            shardOffsets[i + 1] = shardOffsets[i] + this.shards.get(i).getLibraryCapacity();
+        }
+    }
+
+    /**
+     * @return the unmodifiable list of sensors holding partitions of the
+     * library.
+     */
+    public List<FingerprintSensor> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the total capacity of the library.
+     */
+    public int getCapacity() {
+        return shardOffsets[shards.size()];
+    }
+
+    /**
+     * Returns the index of the shard holding a template.
+     *
+     * @param globalId the global id of the template.
+     * @return the index of the shard.
+     */
+    public int getShardIndex(int globalId) {
+        if ((globalId < 0) || (globalId >= getCapacity())) {
+            throw new IllegalArgumentException("Template id " + globalId + " is beyond the library.");
+        }
+
+        int shardIdx = 0;
+        while (globalId >= shardOffsets[shardIdx + 1]) {
+            shardIdx++;
+        }
+
+        return shardIdx;
+    }
+
+    /**
+     * Converts a global id to the id in the module library of the shard.
+     *
+     * @param globalId the global id of the template.
+     * @return the id in the module library of the shard.
+     */
+    public int toLocalId(int globalId) {
+        return globalId - shardOffsets[getShardIndex(globalId)];
+    }
+
+    /**
+     * Converts an id in the module library of a shard to the global id.
+     *
+     * @param shardIdx the index of the shard.
+     * @param localId the id in the module library of the shard.
+     * @return the global id of the template.
+     */
+    public int toGlobalId(int shardIdx, int localId) {
+        return shardOffsets[shardIdx] + localId;
+    }
+
+    /**
+     * Uploads the characteristics to the shard of given global id and stores
+     * them in its module library.
+     *
+     * @param globalId the global id of the new template.
+     * @param characteristics the char file generated by a sensor.
+     * @return the future completed when the template has been stored.
+     */
+    public CompletableFuture<Void> enroll(int globalId, final int[] characteristics) {
+        final FingerprintSensor shard = shards.get(getShardIndex(globalId));
+        final int localId = toLocalId(globalId);
+        return shard.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                shard.enroll(localId, characteristics);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Deletes a template from the library.
+     *
+     * @param globalId the global id of the template.
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed when the template has been deleted.
+     */
+    public CompletableFuture<Void> deleteModel(int globalId, final long timeout) {
+        final FingerprintSensor shard = shards.get(getShardIndex(globalId));
+        final int localId = toLocalId(globalId);
+        return shard.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                shard.deleteModel(localId, timeout);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Searches for a match for given characteristics in all shards. The
+     * characteristics are uploaded to all shards and the shards are searched in
+     * parallel.
+     *
+     * @param characteristics the char file generated by a sensor.
+     * @param timeout the timeout in milliseconds.
+     * @return the future completed with the match with the best matching score
+     * (its id is the global id), or null if no match was found.
+     */
+    public CompletableFuture<SearchResult> search(final int[] characteristics, final long timeout) {
+        final List<CompletableFuture<SearchResult>> shardResults = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            final FingerprintSensor shard = shards.get(i);
+            final int shardIdx = i;
+            shardResults.add(shard.submit(new Callable<SearchResult>() {
+                @Override
+                public SearchResult call() {
+                    if (!shard.uploadModel(FingerprintSensor.CHAR_BUFFER1, characteristics, timeout)) {
+                        throw new FingerprintSensorException("Uploading of characteristics failed.");
+                    }
+
+                    SearchResult result = shard.search(timeout);
+                    if (result == null) {
+                        return null;
+                    }
+
+                    return shard.new SearchResult(toGlobalId(shardIdx, result.getId()), result.getMatchScore());
+                }
+            }));
+        }
+
+        CompletableFuture<?>[] futures = shardResults.toArray(new CompletableFuture<?>[shardResults.size()]);
+        return CompletableFuture.allOf(futures).thenApply(new Function<Void, SearchResult>() {
+            @Override
+            public SearchResult apply(Void ignore) {
+                SearchResult bestResult = null;
+                for (CompletableFuture<SearchResult> shardResult : shardResults) {
+                    SearchResult result = shardResult.join();
+                    if ((result != null)
+                            && ((bestResult == null) || (result.getMatchScore() > bestResult.getMatchScore()))) {
+                        bestResult = result;
+                    }
+                }
+
+                return bestResult;
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of templates keyed by their id in the module library. When the
+ * cache is full, the least recently used template is evicted.
+ */
+class TemplateCache {
+
+	/**
+	 * Cached templates in access order.
+	 */
+	private final LinkedHashMap<Integer, int[]> templates = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+			return size() > capacity;
+		}
+	};
+
+	/**
+	 * The max number of cached templates.
+	 */
+	private int capacity;
+
+	/**
+	 * Constructs a template cache.
+	 *
+	 * @param capacity
+	 *            the max number of cached templates.
+	 */
+	public TemplateCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the max number of cached templates.
+	 *
+	 * @return the capacity of the cache.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the max number of cached templates. Exceeding templates are
+	 * evicted.
+	 *
+	 * @param capacity
+	 *            the capacity of the cache.
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		while (templates.size() > capacity) {
+			Integer eldestId = templates.keySet().iterator().next();
+			templates.remove(eldestId);
+		}
+	}
+
+	/**
+	 * Returns a copy of cached template.
+	 *
+	 * @param id
+	 *            the id of the template in the module library.
+	 * @return the template or null, if the template is not cached.
+	 */
+	public int[] get(int id) {
+		int[] template = templates.get(id);
+		return (template != null) ? template.clone() : null;
+	}
+
+	/**
+	 * Stores a copy of template in the cache.
+	 *
+	 * @param id
+	 *            the id of the template in the module library.
+	 * @param template
+	 *            the template.
+	 */
+	public void put(int id, int[] template) {
+		if (capacity > 0) {
+			templates.put(id, template.clone());
+		}
+	}
+
+	/**
+	 * Removes templates with ids in given range from the cache.
+	 *
+	 * @param id
+	 *            the first id of the range.
+	 * @param count
+	 *            the number of ids in the range.
+	 */
+	public void invalidate(int id, int count) {
+		if (count < templates.size()) {
+			for (int i = 0; i < count; i++) {
+				templates.remove(id + i);
+			}
+		} else {
+			Iterator<Integer> it = templates.keySet().iterator();
+			while (it.hasNext()) {
+				int cachedId = it.next();
+				if ((cachedId >= id) && (cachedId < id + count)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all templates from the cache.
+	 */
+	public void clear() {
+		templates.clear();
+	}
+}
@@ -0,0 +1,355 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Host-side map between stable logical ids of templates and physical ids of
+ * templates in the module library. The map is a permutation of ids: each
+ * logical id is assigned to exactly one physical id and vice versa. Ids that
+ * have never been moved are mapped to themselves, so that an empty map
+ * represents the identity.
+ *
+ * A template is moved by copying it to a free slot, deleting the original
+ * slot and swapping the logical ids of both slots. Thus, an unused logical id
+ * is always mapped to a free physical slot.
+ *
+ * A map constructed with a state file stores its content and the pending move
+ * to the file before a move starts and after it completes, so that the map
+ * survives a restart of the host and an interrupted move can be finished by
+ * {@link #finishPendingMove(FingerprintSensor, BitSet, long)}.
+ */
+public class TemplateIdMap {
+
+    /**
+     * The magic number of the state file.
+     */
+    private static final int STATE_FILE_MAGIC = 0x46504D43;
+
+    /**
+     * Physical ids of logical ids that are not mapped to themselves.
+     */
+    private final Map<Integer, Integer> physicalIds = new HashMap<>();
+
+    /**
+     * Logical ids of physical ids that are not mapped to themselves.
+     */
+    private final Map<Integer, Integer> logicalIds = new HashMap<>();
+
+    /**
+     * The state file, or null if the map is not persisted.
+     */
+    private final File stateFile;
+
+    /**
+     * The physical id of the template being moved, or -1 if there is no
+     * pending move.
+     */
+    private int pendingFromId = -1;
+
+    /**
+     * The physical id of the slot where the template is being moved.
+     */
+    private int pendingToId = -1;
+
+    /**
+     * Constructs an identity map that is not persisted.
+     */
+    public TemplateIdMap() {
+        this.stateFile = null;
+    }
+
+    /**
+     * Constructs a map persisted in a state file. If the state file exists,
+     * the map and the pending move are restored from the file.
+     *
+     * @param stateFile the file storing the map and the pending move.
+     * @throws FingerprintSensorException if the state file cannot be read.
+     */
+    public TemplateIdMap(File stateFile) throws FingerprintSensorException {
+        this.stateFile = stateFile;
+        if (stateFile.exists()) {
+            loadState();
+        }
+    }
+
+    /**
+     * @return the file storing the map, or null if the map is not persisted.
+     */
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Returns the physical id of a template.
+     *
+     * @param logicalId the logical id of the template.
+     * @return the id of the template in the module library.
+     */
+    public synchronized int getPhysicalId(int logicalId) {
+        Integer physicalId = physicalIds.get(logicalId);
+        return (physicalId != null) ? physicalId : logicalId;
+    }
+
+    /**
+     * Returns the logical id of a template.
+     *
+     * @param physicalId the id of the template in the module library.
+     * @return the logical id of the template.
+     */
+    public synchronized int getLogicalId(int physicalId) {
+        Integer logicalId = logicalIds.get(physicalId);
+        return (logicalId != null) ? logicalId : physicalId;
+    }
+
+    /**
+     * Swaps logical ids assigned to two physical ids. The method is invoked
+     * after a template has been moved between the physical ids.
+     *
+     * @param physicalId1 the first physical id.
+     * @param physicalId2 the second physical id.
+     * @throws FingerprintSensorException if the state file cannot be written.
+     */
+    public synchronized void swap(int physicalId1, int physicalId2) throws FingerprintSensorException {
+        swapIds(physicalId1, physicalId2);
+        saveState();
+    }
+
+    /**
+     * @return true, if all ids are mapped to themselves, false otherwise.
+     */
+    public synchronized boolean isIdentity() {
+        return physicalIds.isEmpty();
+    }
+
+    /**
+     * @return the unmodifiable copy of mapping of logical ids that are not
+     * mapped to themselves to their physical ids.
+     */
+    public synchronized Map<Integer, Integer> getMovedIds() {
+        return Collections.unmodifiableMap(new HashMap<>(physicalIds));
+    }
+
+    /**
+     * Resets the map to identity.
+     *
+     * @throws FingerprintSensorException if the state file cannot be written.
+     */
+    public synchronized void clear() throws FingerprintSensorException {
+        clearIds();
+        saveState();
+    }
+
+    /**
+     * Replaces content of the map by given moved ids, e.g., by a map saved by
+     * the application.
+     *
+     * @param movedIds the mapping of logical ids to their physical ids.
+     * @throws FingerprintSensorException if the state file cannot be written.
+     */
+    public synchronized void restore(Map<Integer, Integer> movedIds) throws FingerprintSensorException {
+        restoreIds(movedIds);
+        saveState();
+    }
+
+    /**
+     * @return true, if a move of a template has been started and not finished,
+     * false otherwise.
+     */
+    public synchronized boolean hasPendingMove() {
+        return pendingFromId >= 0;
+    }
+
+    /**
+     * Moves a template to a free slot. The move is journaled, the template is
+     * copied before the original slot is deleted and then the logical ids of
+     * both slots are swapped. The method must be invoked with exclusive access
+     * to the sensor.
+     *
+     * @param sensor the sensor.
+     * @param fromId the physical id of the template.
+     * @param toId the physical id of the free slot.
+     * @param occupiedIds the set of occupied physical ids that is updated.
+     * @param timeout the timeout of each command in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    void moveTemplate(FingerprintSensor sensor, int fromId, int toId, BitSet occupiedIds, long timeout)
+            throws FingerprintSensorException {
+        synchronized (this) {
+            pendingFromId = fromId;
+            pendingToId = toId;
+            saveState();
+        }
+
+        sensor.loadModel(fromId, FingerprintSensor.CHAR_BUFFER1, timeout);
+        sensor.storeUnreservedModel(toId, FingerprintSensor.CHAR_BUFFER1, timeout);
+        occupiedIds.set(toId);
+        sensor.deleteModel(fromId, timeout);
+        occupiedIds.clear(fromId);
+        completePendingMove();
+    }
+
+    /**
+     * Finishes the pending move according to the current content of the
+     * library. The method must be invoked with exclusive access to the sensor.
+     *
+     * @param sensor the sensor.
+     * @param occupiedIds the set of occupied physical ids that is updated.
+     * @param timeout the timeout of each command in milliseconds.
+     * @throws FingerprintSensorException
+     */
+    void finishPendingMove(FingerprintSensor sensor, BitSet occupiedIds, long timeout)
+            throws FingerprintSensorException {
+        int fromId;
+        int toId;
+        synchronized (this) {
+            if (pendingFromId < 0) {
+                return;
+            }
+
+            fromId = pendingFromId;
+            toId = pendingToId;
+            if (!occupiedIds.get(toId)) {
+                // the template has not been copied, the move is abandoned
+                pendingFromId = -1;
+                pendingToId = -1;
+                saveState();
+                return;
+            }
+        }
+
+        if (occupiedIds.get(fromId)) {
+            sensor.deleteModel(fromId, timeout);
+            occupiedIds.clear(fromId);
+        }
+
+        completePendingMove();
+    }
+
+    /**
+     * Updates the map according to the pending move and stores the state
+     * without the pending move.
+     */
+    private synchronized void completePendingMove() {
+        swapIds(pendingFromId, pendingToId);
+        pendingFromId = -1;
+        pendingToId = -1;
+        saveState();
+    }
+
+    /**
+     * Swaps logical ids assigned to two physical ids without saving the state.
+     *
+     * @param physicalId1 the first physical id.
+     * @param physicalId2 the second physical id.
+     */
+    private void swapIds(int physicalId1, int physicalId2) {
+        int logicalId1 = getLogicalId(physicalId1);
+        int logicalId2 = getLogicalId(physicalId2);
+        assign(logicalId1, physicalId2);
+        assign(logicalId2, physicalId1);
+    }
+
+    /**
+     * Resets the map to identity without saving the state.
+     */
+    private void clearIds() {
+        physicalIds.clear();
+        logicalIds.clear();
+    }
+
+    /**
+     * Replaces content of the map without saving the state.
+     *
+     * @param movedIds the mapping of logical ids to their physical ids.
+     */
+    private void restoreIds(Map<Integer, Integer> movedIds) {
+        clearIds();
+        for (Map.Entry<Integer, Integer> entry : movedIds.entrySet()) {
+            assign(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Assigns a logical id to a physical id.
+     *
+     * @param logicalId the logical id.
+     * @param physicalId the physical id.
+     */
+    private void assign(int logicalId, int physicalId) {
+        if (logicalId == physicalId) {
+            physicalIds.remove(logicalId);
+            logicalIds.remove(physicalId);
+        } else {
+            physicalIds.put(logicalId, physicalId);
+            logicalIds.put(physicalId, logicalId);
+        }
+    }
+
+    /**
+     * Loads the map and the pending move from the state file.
+     */
+    private void loadState() {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(stateFile))) {
+            if (dis.readInt() != STATE_FILE_MAGIC) {
+                throw new FingerprintSensorException("Invalid format of the state file " + stateFile + ".");
+            }
+
+            int count = dis.readInt();
+            Map<Integer, Integer> movedIds = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                movedIds.put(dis.readInt(), dis.readInt());
+            }
+
+            pendingFromId = dis.readInt();
+            pendingToId = dis.readInt();
+            restoreIds(movedIds);
+        } catch (IOException e) {
+            throw new FingerprintSensorException("Loading of the state file " + stateFile + " failed.", e);
+        }
+    }
+
+    /**
+     * Stores the map and the pending move to the state file, if the map is
+     * persisted. The file is replaced atomically, so that an interrupted write
+     * keeps the previous state.
+     */
+    private void saveState() {
+        if (stateFile == null) {
+            return;
+        }
+
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile);
+                    DataOutputStream dos = new DataOutputStream(fos)) {
+                dos.writeInt(STATE_FILE_MAGIC);
+                dos.writeInt(physicalIds.size());
+                for (Map.Entry<Integer, Integer> entry : physicalIds.entrySet()) {
+                    dos.writeInt(entry.getKey());
+                    dos.writeInt(entry.getValue());
+                }
+
+                dos.writeInt(pendingFromId);
+                dos.writeInt(pendingToId);
+                dos.flush();
+                fos.getFD().sync();
+            }
+
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FingerprintSensorException("Saving of the state file " + stateFile + " failed.", e);
+        }
+    }
+}
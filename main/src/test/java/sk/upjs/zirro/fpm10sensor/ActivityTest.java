@@ -0,0 +1,159 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.Activity;
+import sk.upjs.zirro.fpm10sensor.FingerprintSensor.SearchResult;
+
+/**
+ * Completion and cancellation of activities.
+ */
+public class ActivityTest {
+
+    private static final long TIMEOUT = 2000;
+
+    private static final long POLLING_INTERVAL = 300;
+
+    private FakeSensorPort port;
+
+    private FingerprintSensor sensor;
+
+    private CountDownLatch fingerPrompted;
+
+    private HumanActionListener listener;
+
+    @Before
+    public void openSensor() {
+        port = new FakeSensorPort();
+        sensor = new FingerprintSensor(port, 57600);
+        sensor.setEventDrivenReceive(false);
+        sensor.setFingerPollingPolicy(new FingerPollingPolicy(POLLING_INTERVAL, POLLING_INTERVAL, 0, 0, false));
+        sensor.open();
+
+        fingerPrompted = new CountDownLatch(1);
+        listener = new HumanActionListener() {
+            @Override
+            public void putFinger() {
+                fingerPrompted.countDown();
+            }
+
+            @Override
+            public void removeFinger() {
+            }
+
+            @Override
+            public void waitWhileDataIsTransferring() {
+            }
+        };
+    }
+
+    @After
+    public void closeSensor() {
+        sensor.close();
+    }
+
+    @Test
+    public void outcomeCannotBeSetByCallers() throws InterruptedException {
+        Activity<SearchResult> activity = sensor.searchActivityAsync(listener);
+        try {
+            activity.complete(null);
+            fail("Activity has been completed.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            activity.completeExceptionally(new RuntimeException());
+            fail("Activity has been completed.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            activity.obtrudeValue(null);
+            fail("Activity has been completed.");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            activity.obtrudeException(new RuntimeException());
+            fail("Activity has been completed.");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        assertFalse(activity.isDone());
+        activity.cancel();
+        activity.waitForCompletion();
+        assertTrue(activity.isCancelled());
+    }
+
+    @Test
+    public void cancelledActivityCompletesAfterWorkflowEnds() throws Exception {
+        Activity<SearchResult> activity = sensor.searchActivityAsync(listener);
+        assertTrue(fingerPrompted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the workflow sleeps between polls and still holds the sensor
+        assertTrue(activity.cancel(true));
+        assertFalse(activity.isDone());
+
+        try {
+            activity.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Activity has not been cancelled.");
+        } catch (CancellationException expected) {
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof CancellationException);
+        }
+        assertTrue(activity.isCancelled());
+
+        // the sensor has been released
+        assertEquals(0, sensor.getTemplateCount(TIMEOUT));
+    }
+
+    @Test
+    public void failedImageSaveIsReported() throws InterruptedException {
+        port.setFingerPresent(true);
+        String imagePathName = new File(new File("missing-directory"), "image.png").getPath();
+
+        Activity<Void> activity = sensor.downloadImageActivityAsync(imagePathName, listener);
+        try {
+            activity.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Image has been saved.");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof FingerprintSensorException);
+            assertTrue(String.valueOf(e.getCause().getCause()), e.getCause().getCause() instanceof IOException);
+        } catch (TimeoutException e) {
+            fail("Activity has not completed.");
+        }
+
+        try {
+            sensor.downloadImageActivity(imagePathName, listener);
+            fail("Image has been saved.");
+        } catch (FingerprintSensorException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void queuedActivityIsCancelledBeforeStart() throws Exception {
+        Activity<SearchResult> runningActivity = sensor.searchActivityAsync(listener);
+        Activity<SearchResult> queuedActivity = sensor.searchActivityAsync(listener);
+        assertTrue(fingerPrompted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        assertTrue(queuedActivity.cancel(false));
+        runningActivity.cancel();
+        queuedActivity.waitForCompletion(TIMEOUT);
+
+        assertTrue(runningActivity.isCancelled());
+        assertTrue(queuedActivity.isCancelled());
+    }
+}
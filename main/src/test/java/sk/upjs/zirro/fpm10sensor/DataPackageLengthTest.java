@@ -0,0 +1,72 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Image transfers with each supported data package length. The effective
+ * throughput of an image download over a serial link paced at 115200 bps is
+ * printed for each length.
+ */
+public class DataPackageLengthTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private static final int[] DATA_PACKAGE_LENGTHS = {32, 64, 128, 256};
+
+    @Test
+    public void imageRoundTripUsesEachDataPackageLength() {
+        byte[] packedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        new Random(5).nextBytes(packedPixels);
+        FingerprintImage image = FingerprintImage.fromPackedPixels(packedPixels);
+
+        for (int length : DATA_PACKAGE_LENGTHS) {
+            FakeSensorPort port = new FakeSensorPort();
+            FingerprintSensor sensor = new FingerprintSensor(port, 57600);
+            sensor.open();
+            try {
+                sensor.setDataPackageLength(length);
+                assertEquals(length, sensor.getDataPackageLength());
+                assertEquals(length, port.getDataPackageLength());
+
+                sensor.uploadImage(image, TIMEOUT);
+                assertArrayEquals(packedPixels, port.getImageBuffer());
+                assertEquals(image, sensor.downloadImage(TIMEOUT));
+                assertEquals(0, port.getChecksumErrorCount());
+            } finally {
+                sensor.close();
+            }
+        }
+    }
+
+    @Test
+    public void imageDownloadThroughputPerDataPackageLength() {
+        byte[] packedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        new Random(5).nextBytes(packedPixels);
+        FingerprintImage image = FingerprintImage.fromPackedPixels(packedPixels);
+
+        System.out.printf("package length   image download   throughput%n");
+        for (int length : DATA_PACKAGE_LENGTHS) {
+            FakeSensorPort port = new FakeSensorPort(true);
+            port.setImageBuffer(packedPixels);
+            FingerprintSensor sensor = new FingerprintSensor(port, 115200);
+            sensor.open();
+            try {
+                sensor.setDataPackageLength(length);
+
+                long start = System.nanoTime();
+                assertEquals(image, sensor.downloadImage(TIMEOUT));
+                long elapsedNanos = System.nanoTime() - start;
+
+                System.out.printf("%14d %13.1f ms %8.0f B/s%n", length, elapsedNanos / 1e6,
+                        packedPixels.length * 1e9 / elapsedNanos);
+            } finally {
+                sensor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+
+/**
+ * In-process emulation of an FPM10 module behind a serial port. The module
+ * answers the handshake, the finger detection and the template count, sets
+ * the data package length, transfers images between the host and its image
+ * buffer and transfers, stores, loads, deletes and searches templates of its
+ * library. A template matches only an identical char buffer. Checksums of
+ * received packages are verified.
+ *
+ * Bytes sent by the module are delivered to the host either immediately or
+ * paced by the baud rate of the port, so that the serial link can be measured.
+ * A registered event listener is notified by RXCHAR events when bytes arrive.
+ */
+class FakeSensorPort extends SerialPort {
+
+    /**
+     * The capacity of the module library.
+     */
+    static final int LIBRARY_CAPACITY = 162;
+
+    /**
+     * The number of bytes delivered to the host at once by a paced link.
+     */
+    private static final int CHUNK_LENGTH = 32;
+
+    /**
+     * Bytes sent by the module with the time of their arrival at the host.
+     */
+    private static final class Chunk {
+
+        /**
+         * The bytes.
+         */
+        final byte[] data;
+
+        /**
+         * The time (System.nanoTime) when the bytes arrive at the host.
+         */
+        final long arrivalTime;
+
+        /**
+         * Constructs a chunk.
+         *
+         * @param data the bytes.
+         * @param arrivalTime the time when the bytes arrive at the host.
+         */
+        Chunk(byte[] data, long arrivalTime) {
+            this.data = data;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    /**
+     * Indicates whether bytes are delivered to the host at the baud rate of
+     * the port.
+     */
+    private final boolean paced;
+
+    /**
+     * The baud rate set by the host.
+     */
+    private int baudRate = BAUDRATE_57600;
+
+    /**
+     * The length of data packages sent by the module.
+     */
+    private int dataPackageLength = 128;
+
+    /**
+     * Bytes received from the host that have not been processed yet.
+     */
+    private byte[] input = new byte[0];
+
+    /**
+     * The reply being composed by the module.
+     */
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * Bytes sent by the module that have not been read by the host yet.
+     */
+    private final LinkedList<Chunk> chunks = new LinkedList<>();
+
+    /**
+     * The time when the last byte sent by the module arrives at the host.
+     */
+    private long lastArrivalTime = 0;
+
+    /**
+     * The registered event listener, or null.
+     */
+    private SerialPortEventListener eventListener = null;
+
+    /**
+     * The image buffer of the module.
+     */
+    private byte[] imageBuffer = new byte[FingerprintImage.PACKED_LENGTH];
+
+    /**
+     * Templates of the module library indexed by their ids, null for free
+     * slots.
+     */
+    private final byte[][] library = new byte[LIBRARY_CAPACITY][];
+
+    /**
+     * The char buffers indexed by their ids.
+     */
+    private final byte[][] charBuffers = new byte[3][];
+
+    /**
+     * Data received from the host, or null if no data are being uploaded.
+     */
+    private ByteArrayOutputStream uploadedData = null;
+
+    /**
+     * The id of char buffer receiving uploaded data, 0 for the image buffer.
+     */
+    private int uploadTarget = 0;
+
+    /**
+     * Indicates whether a finger is on the sensor.
+     */
+    private boolean fingerPresent = false;
+
+    /**
+     * The number of received packages with invalid checksum.
+     */
+    private int checksumErrorCount = 0;
+
+    /**
+     * Constructs an emulated module that delivers bytes immediately.
+     */
+    FakeSensorPort() {
+        this(false);
+    }
+
+    /**
+     * Constructs an emulated module.
+     *
+     * @param paced true, if bytes are delivered to the host at the baud rate
+     * of the port, false if they are delivered immediately.
+     */
+    FakeSensorPort(boolean paced) {
+        super("FAKE");
+        this.paced = paced;
+    }
+
+    /**
+     * @return the copy of the image buffer of the module.
+     */
+    synchronized byte[] getImageBuffer() {
+        return imageBuffer.clone();
+    }
+
+    /**
+     * @param packedPixels the new content of the image buffer of the module.
+     */
+    synchronized void setImageBuffer(byte[] packedPixels) {
+        imageBuffer = packedPixels.clone();
+    }
+
+    /**
+     * @param id the id in the module library.
+     * @return the copy of the template stored at the id, or null if the slot
+     * is free.
+     */
+    synchronized byte[] getTemplate(int id) {
+        return (library[id] != null) ? library[id].clone() : null;
+    }
+
+    /**
+     * @param id the id in the module library.
+     * @param template the template stored at the id, or null to free the
+     * slot.
+     */
+    synchronized void setTemplate(int id, byte[] template) {
+        library[id] = (template != null) ? template.clone() : null;
+    }
+
+    /**
+     * @param fingerPresent true, if a finger is on the sensor.
+     */
+    synchronized void setFingerPresent(boolean fingerPresent) {
+        this.fingerPresent = fingerPresent;
+    }
+
+    /**
+     * @return the length of data packages sent by the module.
+     */
+    synchronized int getDataPackageLength() {
+        return dataPackageLength;
+    }
+
+    /**
+     * @return the number of received packages with invalid checksum.
+     */
+    synchronized int getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    @Override
+    public boolean openPort() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setParams(int baudRate, int dataBits, int stopBits, int parity) {
+        this.baudRate = baudRate;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean closePort() {
+        eventListener = null;
+        chunks.clear();
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public void addEventListener(SerialPortEventListener listener, int mask) {
+        synchronized (this) {
+            eventListener = listener;
+        }
+
+        Thread eventThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverEvents();
+            }
+        }, "FAKE events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+    }
+
+    @Override
+    public synchronized boolean removeEventListener() {
+        eventListener = null;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeBytes(byte[] data) {
+        byte[] newInput = Arrays.copyOf(input, input.length + data.length);
+        System.arraycopy(data, 0, newInput, input.length, data.length);
+        input = newInput;
+
+        // process completely received packages
+        while (input.length >= 9) {
+            int packageLength = ((input[7] & 0xFF) << 8) | (input[8] & 0xFF);
+            if (input.length < 9 + packageLength) {
+                break;
+            }
+
+            int type = input[6] & 0xFF;
+            byte[] payload = Arrays.copyOfRange(input, 9, 7 + packageLength);
+            int checksum = ((input[7 + packageLength] & 0xFF) << 8) | (input[8 + packageLength] & 0xFF);
+            if (checksum != computeChecksum(type, payload)) {
+                checksumErrorCount++;
+            }
+
+            input = Arrays.copyOfRange(input, 9 + packageLength, input.length);
+            processPackage(type, payload);
+        }
+
+        sendOutput();
+        return true;
+    }
+
+    @Override
+    public synchronized byte[] readBytes() {
+        ByteArrayOutputStream arrivedBytes = new ByteArrayOutputStream();
+        long now = System.nanoTime();
+        while (!chunks.isEmpty() && (chunks.getFirst().arrivalTime - now <= 0)) {
+            byte[] data = chunks.removeFirst().data;
+            arrivedBytes.write(data, 0, data.length);
+        }
+
+        return (arrivedBytes.size() > 0) ? arrivedBytes.toByteArray() : null;
+    }
+
+    /**
+     * Notifies the event listener about arrived bytes until the listener is
+     * removed.
+     */
+    private void deliverEvents() {
+        while (true) {
+            SerialPortEventListener listener;
+            int arrivedCount = 0;
+            synchronized (this) {
+                while (true) {
+                    listener = eventListener;
+                    if (listener == null) {
+                        return;
+                    }
+
+                    long waitTime = Long.MAX_VALUE;
+                    if (!chunks.isEmpty()) {
+                        waitTime = chunks.getFirst().arrivalTime - System.nanoTime();
+                        if (waitTime <= 0) {
+                            for (Chunk chunk : chunks) {
+                                arrivedCount += chunk.data.length;
+                            }
+                            break;
+                        }
+                    }
+
+                    try {
+                        if (waitTime == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(waitTime / 1_000_000, (int) (waitTime % 1_000_000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            listener.serialEvent(new SerialPortEvent(getPortName(), MASK_RXCHAR, arrivedCount));
+        }
+    }
+
+    /**
+     * Moves the composed reply to bytes sent to the host.
+     */
+    private void sendOutput() {
+        byte[] data = output.toByteArray();
+        output.reset();
+        if (data.length == 0) {
+            return;
+        }
+
+        if (!paced) {
+            chunks.add(new Chunk(data, System.nanoTime()));
+        } else {
+            // 10 bits per byte (start bit, 8 data bits, stop bit)
+            long nanosPerByte = 10_000_000_000L / baudRate;
+            lastArrivalTime = Math.max(lastArrivalTime, System.nanoTime());
+            for (int offset = 0; offset < data.length; offset += CHUNK_LENGTH) {
+                int end = Math.min(offset + CHUNK_LENGTH, data.length);
+                lastArrivalTime += (end - offset) * nanosPerByte;
+                chunks.add(new Chunk(Arrays.copyOfRange(data, offset, end), lastArrivalTime));
+            }
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Processes a package received from the host.
+     *
+     * @param type the package type.
+     * @param payload the payload.
+     */
+    private void processPackage(int type, byte[] payload) {
+        if ((type == 0x02) || (type == 0x08)) {
+            if (uploadedData != null) {
+                uploadedData.write(payload, 0, payload.length);
+                if (type == 0x08) {
+                    if (uploadTarget == 0) {
+                        imageBuffer = uploadedData.toByteArray();
+                    } else {
+                        charBuffers[uploadTarget] = uploadedData.toByteArray();
+                    }
+                    uploadedData = null;
+                }
+            }
+            return;
+        }
+
+        switch (payload[0]) {
+            case 0x13: // verify password
+                sendPackage(0x07, new byte[]{0});
+                break;
+            case 0x01: // get image
+                sendPackage(0x07, new byte[]{(byte) (fingerPresent ? 0 : 0x02)});
+                break;
+            case 0x0F: // read system parameters
+                sendPackage(0x07, new byte[]{0, 0, 0, 0, 0, (byte) (LIBRARY_CAPACITY >> 8), (byte) LIBRARY_CAPACITY,
+                    0, 3, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0,
+                    (byte) Integer.numberOfTrailingZeros(dataPackageLength / 32), 0, (byte) (baudRate / 9600)});
+                break;
+            case 0x0E: // set system parameter
+                if ((payload[1] == 6) && (payload[2] >= 0) && (payload[2] <= 3)) {
+                    dataPackageLength = 32 << payload[2];
+                    sendPackage(0x07, new byte[]{0});
+                } else {
+                    // invalid register number
+                    sendPackage(0x07, new byte[]{0x1A});
+                }
+                break;
+            case 0x1D: { // template count
+                int count = 0;
+                for (byte[] template : library) {
+                    if (template != null) {
+                        count++;
+                    }
+                }
+                sendPackage(0x07, new byte[]{0, (byte) (count >> 8), (byte) count});
+                break;
+            }
+            case 0x1F: { // read index table
+                byte[] reply = new byte[33];
+                int page = payload[1];
+                for (int i = 0; i < 256; i++) {
+                    int id = page * 256 + i;
+                    if ((id < LIBRARY_CAPACITY) && (library[id] != null)) {
+                        reply[1 + i / 8] |= (byte) (1 << (i % 8));
+                    }
+                }
+                sendPackage(0x07, reply);
+                break;
+            }
+            case 0x06: { // store
+                int id = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+                if ((id >= LIBRARY_CAPACITY) || (charBuffers[payload[1]] == null)) {
+                    // addressing page ID is beyond the finger library
+                    sendPackage(0x07, new byte[]{0x0B});
+                } else {
+                    library[id] = charBuffers[payload[1]].clone();
+                    sendPackage(0x07, new byte[]{0});
+                }
+                break;
+            }
+            case 0x07: { // load char
+                int id = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+                if ((id >= LIBRARY_CAPACITY) || (library[id] == null)) {
+                    // error when reading template from library
+                    sendPackage(0x07, new byte[]{0x0C});
+                } else {
+                    charBuffers[payload[1]] = library[id].clone();
+                    sendPackage(0x07, new byte[]{0});
+                }
+                break;
+            }
+            case 0x08: // download char
+                if (charBuffers[payload[1]] == null) {
+                    // error when uploading template
+                    sendPackage(0x07, new byte[]{0x0D});
+                } else {
+                    sendPackage(0x07, new byte[]{0});
+                    sendDataPackages(charBuffers[payload[1]]);
+                }
+                break;
+            case 0x09: // upload char
+                sendPackage(0x07, new byte[]{0});
+                uploadedData = new ByteArrayOutputStream();
+                uploadTarget = payload[1];
+                break;
+            case 0x04: { // search
+                int startId = ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+                int count = ((payload[4] & 0xFF) << 8) | (payload[5] & 0xFF);
+                byte[] reply = {0x09, 0, 0, 0, 0};
+                for (int id = startId; (id < startId + count) && (id < LIBRARY_CAPACITY); id++) {
+                    if ((library[id] != null) && Arrays.equals(library[id], charBuffers[payload[1]])) {
+                        reply = new byte[]{0, (byte) (id >> 8), (byte) id, 0, 100};
+                        break;
+                    }
+                }
+                sendPackage(0x07, reply);
+                break;
+            }
+            case 0x0C: { // delete char
+                int id = ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF);
+                int count = ((payload[3] & 0xFF) << 8) | (payload[4] & 0xFF);
+                for (int i = id; (i < id + count) && (i < LIBRARY_CAPACITY); i++) {
+                    library[i] = null;
+                }
+                sendPackage(0x07, new byte[]{0});
+                break;
+            }
+            case 0x0B: // upload image
+                sendPackage(0x07, new byte[]{0});
+                uploadedData = new ByteArrayOutputStream();
+                uploadTarget = 0;
+                break;
+            case 0x0A: // download image
+                sendPackage(0x07, new byte[]{0});
+                sendDataPackages(imageBuffer);
+                break;
+            default:
+                // illegal instruction
+                sendPackage(0x07, new byte[]{0x01});
+        }
+    }
+
+    /**
+     * Composes data packages sent to the host. The last package is the end of
+     * data package.
+     *
+     * @param data the data.
+     */
+    private void sendDataPackages(byte[] data) {
+        for (int offset = 0; offset < data.length; offset += dataPackageLength) {
+            int end = Math.min(offset + dataPackageLength, data.length);
+            sendPackage((end < data.length) ? 0x02 : 0x08, Arrays.copyOfRange(data, offset, end));
+        }
+    }
+
+    /**
+     * Composes a package sent to the host.
+     *
+     * @param type the package type.
+     * @param payload the payload.
+     */
+    private void sendPackage(int type, byte[] payload) {
+        int packageLength = payload.length + 2;
+        int checksum = computeChecksum(type, payload);
+        output.write(new byte[]{(byte) 0xEF, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 0, 6);
+        output.write(type);
+        output.write(packageLength >> 8);
+        output.write(packageLength);
+        output.write(payload, 0, payload.length);
+        output.write(checksum >> 8);
+        output.write(checksum);
+    }
+
+    /**
+     * Computes the checksum of a package.
+     *
+     * @param type the package type.
+     * @param payload the payload.
+     * @return the checksum.
+     */
+    private static int computeChecksum(int type, byte[] payload) {
+        int packageLength = payload.length + 2;
+        int checksum = type + (packageLength >> 8) + (packageLength & 0xFF);
+        for (byte b : payload) {
+            checksum += b & 0xFF;
+        }
+
+        return checksum & 0xFFFF;
+    }
+}
@@ -0,0 +1,378 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Serialization formats of templates and scans and conversions between scans
+ * and images. The raster-based conversions are compared with conversions by
+ * setRGB and getRGB.
+ */
+public class FingerprintUtilsTest {
+
+    private static final int TEMPLATE_LENGTH = 512;
+
+    private static final int REPETITIONS = 200;
+
+    private static final int IMAGE_REPETITIONS = 20;
+
+    @Test
+    public void templateRoundTrip() {
+        int[] template = randomTemplate(new Random(19));
+
+        byte[] data = FingerprintUtils.serializeTemplate(template);
+
+        assertEquals(FingerprintUtils.getSerializedTemplateLength(template), data.length);
+        assertEquals(4 + TEMPLATE_LENGTH, data.length);
+        assertArrayEquals(template, FingerprintUtils.deserializeTemplate(data));
+    }
+
+    @Test
+    public void scanRoundTrip() {
+        Random random = new Random(19);
+        int[][] scan = new int[FingerprintImage.HEIGHT][FingerprintImage.WIDTH];
+        for (int[] row : scan) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(16) << 4;
+            }
+        }
+
+        byte[] data = FingerprintUtils.serializeScan(scan);
+
+        assertEquals(FingerprintUtils.getSerializedScanLength(scan), data.length);
+        assertEquals(6 + FingerprintImage.PACKED_LENGTH, data.length);
+        assertArrayEquals(scan, FingerprintUtils.deserializeScan(data));
+    }
+
+    @Test
+    public void scanIsQuantizedToNibbles() {
+        int[][] scan = {{0, 7, 8, 24}, {127, 128, 250, 255}};
+        int[][] quantizedScan = {{0, 0, 16, 32}, {128, 128, 240, 240}};
+
+        assertArrayEquals(quantizedScan, FingerprintUtils.deserializeScan(FingerprintUtils.serializeScan(scan)));
+    }
+
+    @Test
+    public void oddWidthScanKeepsTrailingNibble() {
+        int[][] scan = {{0x10, 0x20, 0x30}, {0x40, 0x50, 0x60}, {0x70, 0x80, 0x90}};
+
+        byte[] data = FingerprintUtils.serializeScan(scan);
+
+        // 9 pixels are packed to 5 bytes, the last pixel in the upper nibble
+        assertEquals(6 + 5, data.length);
+        assertEquals(0x90, data[data.length - 1] & 0xFF);
+        assertArrayEquals(scan, FingerprintUtils.deserializeScan(data));
+    }
+
+    @Test
+    public void recordsAreStreamedThroughOneBuffer() {
+        Random random = new Random(19);
+        int[] template1 = randomTemplate(random);
+        int[] template2 = randomTemplate(random);
+        int[][] scan = {{0x10, 0x20, 0x30}};
+
+        ByteBuffer buffer = ByteBuffer.allocate(FingerprintUtils.getSerializedTemplateLength(template1)
+                + FingerprintUtils.getSerializedScanLength(scan)
+                + FingerprintUtils.getSerializedTemplateLength(template2));
+        FingerprintUtils.writeTemplate(buffer, template1);
+        FingerprintUtils.writeScan(buffer, scan);
+        FingerprintUtils.writeTemplate(buffer, template2);
+        assertEquals(0, buffer.remaining());
+
+        buffer.flip();
+        assertArrayEquals(template1, FingerprintUtils.readTemplate(buffer));
+        assertArrayEquals(scan, FingerprintUtils.readScan(buffer));
+        assertArrayEquals(template2, FingerprintUtils.readTemplate(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scanIsNotReadAsTemplate() {
+        FingerprintUtils.deserializeTemplate(FingerprintUtils.serializeScan(new int[][]{{0x10, 0x20}}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void templateIsNotReadAsScan() {
+        FingerprintUtils.deserializeScan(FingerprintUtils.serializeTemplate(new int[]{1, 2, 3}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedVersionIsRejected() {
+        byte[] data = FingerprintUtils.serializeTemplate(new int[]{1, 2, 3});
+        data[1] = (byte) (FingerprintUtils.FORMAT_VERSION + 1);
+
+        FingerprintUtils.deserializeTemplate(data);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void binaryFormatIsSmallerThanJavaSerialization() {
+        Random random = new Random(19);
+        int[] template = randomTemplate(random);
+        int[][] scan = new int[FingerprintImage.HEIGHT][FingerprintImage.WIDTH];
+        for (int[] row : scan) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(16) << 4;
+            }
+        }
+
+        byte[] templateData = FingerprintUtils.serializeTemplate(template);
+        byte[] oldTemplateData = FingerprintUtils.convertIntArrayToBytes(template);
+        byte[] scanData = FingerprintUtils.serializeScan(scan);
+        byte[] oldScanData = FingerprintUtils.convert2DIntArrayToBytes(scan);
+        assertTrue(templateData.length < oldTemplateData.length);
+        assertTrue(scanData.length < oldScanData.length);
+        assertArrayEquals(FingerprintUtils.convertBytesToIntArray(oldTemplateData),
+                FingerprintUtils.deserializeTemplate(templateData));
+        assertArrayEquals(FingerprintUtils.convertBytesTo2DIntArray(oldScanData),
+                FingerprintUtils.deserializeScan(scanData));
+
+        // warm up both implementations before measuring
+        for (int i = 0; i < REPETITIONS; i++) {
+            FingerprintUtils.deserializeTemplate(FingerprintUtils.serializeTemplate(template));
+            FingerprintUtils.convertBytesToIntArray(FingerprintUtils.convertIntArrayToBytes(template));
+            FingerprintUtils.deserializeScan(FingerprintUtils.serializeScan(scan));
+            FingerprintUtils.convertBytesTo2DIntArray(FingerprintUtils.convert2DIntArrayToBytes(scan));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REPETITIONS; i++) {
+            FingerprintUtils.deserializeTemplate(FingerprintUtils.serializeTemplate(template));
+        }
+        long templateNanos = (System.nanoTime() - start) / REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < REPETITIONS; i++) {
+            FingerprintUtils.convertBytesToIntArray(FingerprintUtils.convertIntArrayToBytes(template));
+        }
+        long oldTemplateNanos = (System.nanoTime() - start) / REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < REPETITIONS; i++) {
+            FingerprintUtils.deserializeScan(FingerprintUtils.serializeScan(scan));
+        }
+        long scanNanos = (System.nanoTime() - start) / REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < REPETITIONS; i++) {
+            FingerprintUtils.convertBytesTo2DIntArray(FingerprintUtils.convert2DIntArrayToBytes(scan));
+        }
+        long oldScanNanos = (System.nanoTime() - start) / REPETITIONS;
+
+        System.out.printf("format              template size   round trip   scan size   round trip%n");
+        System.out.printf("binary              %11d B %9.1f us %9d B %9.1f us%n", templateData.length,
+                templateNanos / 1e3, scanData.length, scanNanos / 1e3);
+        System.out.printf("Java serialization  %11d B %9.1f us %9d B %9.1f us%n", oldTemplateData.length,
+                oldTemplateNanos / 1e3, oldScanData.length, oldScanNanos / 1e3);
+    }
+
+    @Test
+    public void scanToImageMatchesSetRgb() {
+        int[][] scan = randomScan(new Random(22));
+
+        BufferedImage image = FingerprintUtils.fingerprintScanToImage(scan);
+
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+        assertArrayEquals(getRasterData(scanToImageByRgb(scan)), getRasterData(image));
+    }
+
+    @Test
+    public void fingerprintImageToImageMatchesScanToImage() {
+        FingerprintImage fingerprintImage = FingerprintImage.fromScan(randomScan(new Random(22)));
+
+        BufferedImage image = FingerprintUtils.fingerprintImageToImage(fingerprintImage);
+
+        assertArrayEquals(getRasterData(scanToImageByRgb(fingerprintImage.toScan())), getRasterData(image));
+    }
+
+    @Test
+    public void grayImageToScanMatchesGetRgb() {
+        BufferedImage image = FingerprintUtils.fingerprintScanToImage(randomScan(new Random(22)));
+
+        assertArrayEquals(imageToScanByRgb(image), FingerprintUtils.imageToFingerprintScan(image));
+    }
+
+    @Test
+    public void grayImageWithEveryLevelToScanMatchesGetRgb() {
+        BufferedImage image = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+        for (int x = 0; x < 256; x++) {
+            image.getRaster().setSample(x, 0, 0, x);
+        }
+
+        assertArrayEquals(imageToScanByRgb(image), FingerprintUtils.imageToFingerprintScan(image));
+    }
+
+    @Test
+    public void grayChildImageToScanMatchesGetRgb() {
+        BufferedImage image = FingerprintUtils.fingerprintScanToImage(randomScan(new Random(22)));
+        BufferedImage childImage = image.getSubimage(16, 8, 100, 50);
+
+        assertArrayEquals(imageToScanByRgb(childImage), FingerprintUtils.imageToFingerprintScan(childImage));
+    }
+
+    @Test
+    public void colorImageToScanMatchesGetRgb() {
+        Random random = new Random(22);
+        BufferedImage image = new BufferedImage(FingerprintImage.WIDTH, FingerprintImage.HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+
+        assertArrayEquals(imageToScanByRgb(image), FingerprintUtils.imageToFingerprintScan(image));
+    }
+
+    @Test
+    public void batchConversionsKeepOrder() {
+        Random random = new Random(22);
+        List<int[][]> scans = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            scans.add(randomScan(random));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<BufferedImage> images = FingerprintUtils.fingerprintScansToImages(scans, pool);
+            List<int[][]> convertedScans = FingerprintUtils.imagesToFingerprintScans(images, pool);
+
+            assertEquals(scans.size(), images.size());
+            for (int i = 0; i < scans.size(); i++) {
+                assertArrayEquals(getRasterData(scanToImageByRgb(scans.get(i))), getRasterData(images.get(i)));
+                assertArrayEquals(imageToScanByRgb(images.get(i)), convertedScans.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void measureRasterAndRgbConversions() {
+        int[][] scan = randomScan(new Random(22));
+        BufferedImage image = FingerprintUtils.fingerprintScanToImage(scan);
+
+        // warm up both implementations before measuring
+        for (int i = 0; i < IMAGE_REPETITIONS; i++) {
+            FingerprintUtils.imageToFingerprintScan(FingerprintUtils.fingerprintScanToImage(scan));
+            imageToScanByRgb(scanToImageByRgb(scan));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGE_REPETITIONS; i++) {
+            FingerprintUtils.fingerprintScanToImage(scan);
+        }
+        long toImageNanos = (System.nanoTime() - start) / IMAGE_REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < IMAGE_REPETITIONS; i++) {
+            scanToImageByRgb(scan);
+        }
+        long rgbToImageNanos = (System.nanoTime() - start) / IMAGE_REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < IMAGE_REPETITIONS; i++) {
+            FingerprintUtils.imageToFingerprintScan(image);
+        }
+        long toScanNanos = (System.nanoTime() - start) / IMAGE_REPETITIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < IMAGE_REPETITIONS; i++) {
+            imageToScanByRgb(image);
+        }
+        long rgbToScanNanos = (System.nanoTime() - start) / IMAGE_REPETITIONS;
+
+        System.out.printf("conversion   scan to image   image to scan%n");
+        System.out.printf("raster       %10.2f ms %12.2f ms%n", toImageNanos / 1e6, toScanNanos / 1e6);
+        System.out.printf("setRGB/getRGB %9.2f ms %12.2f ms%n", rgbToImageNanos / 1e6, rgbToScanNanos / 1e6);
+    }
+
+    /**
+     * Converts a scan to an image by setRGB.
+     *
+     * @param scan the scan.
+     * @return the image.
+     */
+    private static BufferedImage scanToImageByRgb(int[][] scan) {
+        BufferedImage image = new BufferedImage(scan[0].length, scan.length, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < scan.length; y++) {
+            for (int x = 0; x < scan[y].length; x++) {
+                int level = scan[y][x] % 256;
+                image.setRGB(x, y, new Color(level, level, level).getRGB());
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Converts an image to a scan by getRGB.
+     *
+     * @param image the image.
+     * @return the scan.
+     */
+    private static int[][] imageToScanByRgb(BufferedImage image) {
+        int[][] scan = new int[image.getHeight()][image.getWidth()];
+        for (int y = 0; y < scan.length; y++) {
+            for (int x = 0; x < scan[y].length; x++) {
+                scan[y][x] = new Color(image.getRGB(x, y)).getBlue();
+            }
+        }
+
+        return scan;
+    }
+
+    /**
+     * Returns the raster data of a TYPE_BYTE_GRAY image.
+     *
+     * @param image the image.
+     * @return the raster data.
+     */
+    private static byte[] getRasterData(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Creates a scan of random gray levels.
+     *
+     * @param random the source of randomness.
+     * @return the scan.
+     */
+    private static int[][] randomScan(Random random) {
+        int[][] scan = new int[FingerprintImage.HEIGHT][FingerprintImage.WIDTH];
+        for (int[] row : scan) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(256);
+            }
+        }
+
+        return scan;
+    }
+
+    /**
+     * Creates a template of random bytes.
+     *
+     * @param random the source of randomness.
+     * @return the template.
+     */
+    private static int[] randomTemplate(Random random) {
+        int[] template = new int[TEMPLATE_LENGTH];
+        for (int i = 0; i < template.length; i++) {
+            template[i] = random.nextInt(256);
+        }
+
+        return template;
+    }
+}
@@ -0,0 +1,99 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips of images between the host and an emulated module.
+ */
+public class ImageTransferTest {
+
+    private static final long TIMEOUT = 2000;
+
+    private FakeSensorPort port;
+
+    private FingerprintSensor sensor;
+
+    @Before
+    public void openSensor() {
+        port = new FakeSensorPort();
+        sensor = new FingerprintSensor(port, 57600);
+        sensor.setEventDrivenReceive(false);
+        sensor.open();
+    }
+
+    @After
+    public void closeSensor() {
+        sensor.close();
+    }
+
+    @Test
+    public void uploadedImageIsDownloadedUnchanged() {
+        byte[] packedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        new Random(23).nextBytes(packedPixels);
+        FingerprintImage image = FingerprintImage.fromPackedPixels(packedPixels);
+
+        sensor.uploadImage(image, TIMEOUT);
+        assertArrayEquals(packedPixels, port.getImageBuffer());
+
+        assertEquals(image, sensor.downloadImage(TIMEOUT));
+        assertEquals(0, port.getChecksumErrorCount());
+    }
+
+    @Test
+    public void uploadedScanIsQuantizedLikeSerializedScan() {
+        int[][] scan = new int[FingerprintImage.HEIGHT][FingerprintImage.WIDTH];
+        Random random = new Random(23);
+        for (int[] row : scan) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt(256);
+            }
+        }
+        scan[0][0] = 24;
+
+        sensor.uploadImageScan(TIMEOUT, scan);
+        byte[] uploadedPixels = port.getImageBuffer();
+        byte[] serializedScan = FingerprintUtils.serializeScan(scan);
+
+        assertArrayEquals(FingerprintImage.fromScan(scan).getPackedPixels(), uploadedPixels);
+        assertArrayEquals(uploadedPixels, Arrays.copyOfRange(serializedScan, 6, serializedScan.length));
+        assertEquals(32, sensor.downloadImage(TIMEOUT).getPixel(0, 0));
+        assertEquals(0, port.getChecksumErrorCount());
+    }
+
+    @Test
+    public void downloadListenerReceivesPixelsAndRows() {
+        byte[] packedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        new Random(21).nextBytes(packedPixels);
+        final FingerprintImage image = FingerprintImage.fromPackedPixels(packedPixels);
+        port.setImageBuffer(packedPixels);
+
+        final byte[] receivedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        final int[] rowCount = new int[1];
+        ImageDownloadListener listener = new ImageDownloadListener() {
+            @Override
+            public void imageDataReceived(ByteBuffer packedPixels, int offset) {
+                packedPixels.get(receivedPixels, offset, packedPixels.remaining());
+            }
+
+            @Override
+            public void imageRowReceived(int y, int[] row) {
+                assertEquals(rowCount[0], y);
+                assertArrayEquals(image.getRow(y, new int[FingerprintImage.WIDTH]), row);
+                rowCount[0]++;
+            }
+        };
+
+        assertEquals(image, sensor.downloadImage(TIMEOUT, listener));
+        assertArrayEquals(packedPixels, receivedPixels);
+        assertEquals(FingerprintImage.HEIGHT, rowCount[0]);
+    }
+}
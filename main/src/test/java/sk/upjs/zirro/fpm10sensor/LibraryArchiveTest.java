@@ -0,0 +1,228 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Export, resumed export and import of the module library.
+ */
+public class LibraryArchiveTest {
+
+    private static final long TIMEOUT = 2000;
+
+    private static final int TEMPLATE_LENGTH = 512;
+
+    private static final int HEADER_LENGTH = 5;
+
+    private static final int RECORD_LENGTH = 8 + TEMPLATE_LENGTH;
+
+    private static final int END_RECORD_LENGTH = 12;
+
+    private static final int[] IDS = {3, 10, 50};
+
+    private FakeSensorPort port;
+
+    private FingerprintSensor sensor;
+
+    private LibraryArchive archive;
+
+    private File archiveFile;
+
+    private byte[][] templates;
+
+    @Before
+    public void openSensor() throws IOException {
+        port = new FakeSensorPort();
+        sensor = new FingerprintSensor(port, 57600);
+        sensor.setEventDrivenReceive(false);
+        sensor.open();
+        archive = new LibraryArchive(sensor);
+        archiveFile = File.createTempFile("library", ".fpma");
+
+        Random random = new Random(18);
+        templates = new byte[FakeSensorPort.LIBRARY_CAPACITY][];
+        for (int id : IDS) {
+            templates[id] = new byte[TEMPLATE_LENGTH];
+            random.nextBytes(templates[id]);
+            port.setTemplate(id, templates[id]);
+        }
+    }
+
+    @After
+    public void closeSensor() {
+        sensor.close();
+        archiveFile.delete();
+    }
+
+    @Test
+    public void exportedLibraryIsImported() throws IOException {
+        assertEquals(IDS.length, archive.exportLibrary(archiveFile, false, TIMEOUT));
+        assertEquals(HEADER_LENGTH + IDS.length * RECORD_LENGTH + END_RECORD_LENGTH, archiveFile.length());
+
+        clearLibrary();
+        assertEquals(IDS.length, archive.importLibrary(archiveFile, TIMEOUT));
+        assertLibraryRestored();
+    }
+
+    @Test
+    public void exportIsResumedAfterTruncatedRecord() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+
+        // the export was interrupted in the middle of the last record and a
+        // template has been enrolled since then
+        truncate(HEADER_LENGTH + 2 * RECORD_LENGTH + 100);
+        addTemplate(70);
+
+        assertEquals(2, archive.exportLibrary(archiveFile, true, TIMEOUT));
+        assertEquals(HEADER_LENGTH + 4 * RECORD_LENGTH + END_RECORD_LENGTH, archiveFile.length());
+
+        clearLibrary();
+        assertEquals(4, archive.importLibrary(archiveFile, TIMEOUT));
+        assertLibraryRestored();
+    }
+
+    @Test
+    public void completeExportIsResumed() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+        addTemplate(70);
+
+        // the end record is replaced by the new record and a new end record
+        assertEquals(1, archive.exportLibrary(archiveFile, true, TIMEOUT));
+        assertEquals(HEADER_LENGTH + 4 * RECORD_LENGTH + END_RECORD_LENGTH, archiveFile.length());
+        assertEquals(0, archive.exportLibrary(archiveFile, true, TIMEOUT));
+
+        clearLibrary();
+        assertEquals(4, archive.importLibrary(archiveFile, TIMEOUT));
+        assertLibraryRestored();
+    }
+
+    @Test
+    public void resumeOfInvalidArchiveStartsNewArchive() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            raf.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        }
+
+        assertEquals(IDS.length, archive.exportLibrary(archiveFile, true, TIMEOUT));
+
+        clearLibrary();
+        assertEquals(IDS.length, archive.importLibrary(archiveFile, TIMEOUT));
+        assertLibraryRestored();
+    }
+
+    @Test
+    public void damagedRecordIsRejected() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            long position = HEADER_LENGTH + RECORD_LENGTH + 100;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x01);
+        }
+
+        assertImportRejected("damaged record 2");
+    }
+
+    @Test
+    public void truncatedArchiveIsRejected() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+        truncate(HEADER_LENGTH + IDS.length * RECORD_LENGTH);
+
+        assertImportRejected("missing end record");
+    }
+
+    @Test
+    public void archiveWithTruncatedRecordIsRejected() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+        truncate(HEADER_LENGTH + RECORD_LENGTH + 100);
+
+        assertImportRejected("missing end record");
+    }
+
+    @Test
+    public void archiveWithInvalidHeaderIsRejected() throws IOException {
+        archive.exportLibrary(archiveFile, false, TIMEOUT);
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            raf.write(0);
+        }
+
+        assertImportRejected("invalid header");
+    }
+
+    /**
+     * Asserts that the import of the archive fails and no template is stored.
+     *
+     * @param reason the reason of the rejection in the message.
+     */
+    private void assertImportRejected(String reason) {
+        clearLibrary();
+        try {
+            archive.importLibrary(archiveFile, TIMEOUT);
+            fail("Archive has been imported.");
+        } catch (FingerprintSensorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+
+        for (int id = 0; id < FakeSensorPort.LIBRARY_CAPACITY; id++) {
+            assertNull(port.getTemplate(id));
+        }
+    }
+
+    /**
+     * Stores a new random template in the module library.
+     *
+     * @param id the id of the template.
+     */
+    private void addTemplate(int id) {
+        templates[id] = new byte[TEMPLATE_LENGTH];
+        new Random(id).nextBytes(templates[id]);
+        port.setTemplate(id, templates[id]);
+    }
+
+    /**
+     * Deletes all templates from the module library.
+     */
+    private void clearLibrary() {
+        for (int id = 0; id < FakeSensorPort.LIBRARY_CAPACITY; id++) {
+            port.setTemplate(id, null);
+        }
+        sensor.invalidateOccupancy();
+    }
+
+    /**
+     * Asserts that the module library contains exactly the exported templates.
+     */
+    private void assertLibraryRestored() {
+        for (int id = 0; id < FakeSensorPort.LIBRARY_CAPACITY; id++) {
+            if (templates[id] == null) {
+                assertNull(port.getTemplate(id));
+            } else {
+                assertArrayEquals(templates[id], port.getTemplate(id));
+            }
+        }
+    }
+
+    /**
+     * Truncates the archive file.
+     *
+     * @param length the new length of the file.
+     * @throws IOException if the file cannot be truncated.
+     */
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Encoding and decoding of packages exchanged with an emulated module.
+ */
+public class PackageCodecTest {
+
+    private static final long TIMEOUT = 2000;
+
+    private FakeSensorPort port;
+
+    private FingerprintSensor sensor;
+
+    @Before
+    public void openSensor() {
+        port = new FakeSensorPort();
+        sensor = new FingerprintSensor(port, 57600);
+        sensor.setEventDrivenReceive(false);
+        sensor.open();
+    }
+
+    @After
+    public void closeSensor() {
+        sensor.close();
+    }
+
+    @Test
+    public void payloadWithPartialLastPackageIsTransferred() {
+        // 3 full packages of 128 bytes and a package of 116 bytes
+        assertTemplateTransferred(500, 7);
+    }
+
+    @Test
+    public void payloadOfSeveralWritesIsTransferred() {
+        // 32 packages of 32 bytes are sent by several writes, the last
+        // package has 8 bytes
+        sensor.setDataPackageLength(32);
+        assertTemplateTransferred(1000, 8);
+    }
+
+    @Test
+    public void payloadOneByteOverFullWriteIsTransferred() {
+        // 8 full packages are sent by one write and the last byte by another
+        sensor.setDataPackageLength(64);
+        assertTemplateTransferred(8 * 64 + 1, 9);
+    }
+
+    @Test
+    public void commandsOfDifferentLengthsAreEncoded() {
+        byte[] template = randomTemplate(512, 11);
+        port.setTemplate(20, template);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, sensor.getTemplateCount(TIMEOUT));
+            assertTrue(sensor.isOccupied(20, TIMEOUT));
+            assertArrayEquals(toInts(template), sensor.readTemplate(20, TIMEOUT));
+            sensor.invalidateOccupancy();
+        }
+
+        assertEquals(0, port.getChecksumErrorCount());
+    }
+
+    /**
+     * Uploads a template to the module, stores it and downloads it back.
+     *
+     * @param length the length of the template in bytes.
+     * @param id the id where the template is stored.
+     */
+    private void assertTemplateTransferred(int length, int id) {
+        byte[] template = randomTemplate(length, id);
+
+        assertTrue(sensor.uploadModel(FingerprintSensor.CHAR_BUFFER1, toInts(template), TIMEOUT));
+        sensor.storeModel(id, FingerprintSensor.CHAR_BUFFER1, TIMEOUT);
+
+        assertArrayEquals(template, port.getTemplate(id));
+        assertArrayEquals(toInts(template), sensor.readTemplate(id, TIMEOUT));
+        assertEquals(0, port.getChecksumErrorCount());
+    }
+
+    /**
+     * Creates a template of random bytes.
+     *
+     * @param length the length of the template.
+     * @param seed the seed of the random generator.
+     * @return the template.
+     */
+    private static byte[] randomTemplate(int length, int seed) {
+        byte[] template = new byte[length];
+        new Random(seed).nextBytes(template);
+        return template;
+    }
+
+    /**
+     * Converts bytes to unsigned values.
+     *
+     * @param bytes the bytes.
+     * @return the unsigned values.
+     */
+    private static int[] toInts(byte[] bytes) {
+        int[] values = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            values[i] = bytes[i] & 0xFF;
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,100 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Comparison of the event-driven and the polling receive mode on a serial
+ * link paced at 115200 bps. The measured latency of a short command, the
+ * duration of a full image download and the CPU time of the receiving thread
+ * are printed for both modes.
+ */
+public class ReceiveModeTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private static final int COMMAND_COUNT = 50;
+
+    /**
+     * Measured values of a receive mode.
+     */
+    private static final class Measurement {
+
+        long commandLatencyNanos;
+
+        long imageDownloadNanos;
+
+        long cpuNanos;
+
+        FingerprintImage image;
+    }
+
+    @Test
+    public void eventDrivenAndPollingReceiveDownloadTheSameImage() {
+        byte[] packedPixels = new byte[FingerprintImage.PACKED_LENGTH];
+        new Random(1).nextBytes(packedPixels);
+
+        Measurement polling = measure(false, packedPixels);
+        Measurement eventDriven = measure(true, packedPixels);
+
+        FingerprintImage expectedImage = FingerprintImage.fromPackedPixels(packedPixels);
+        assertEquals(expectedImage, polling.image);
+        assertEquals(expectedImage, eventDriven.image);
+
+        System.out.printf("receive mode   command latency   image download   receiver CPU%n");
+        print("polling", polling);
+        print("event-driven", eventDriven);
+    }
+
+    /**
+     * Executes short commands and an image download in given receive mode.
+     *
+     * @param eventDriven true for the event-driven receive mode, false for
+     * polling.
+     * @param packedPixels the image in the module.
+     * @return the measured values.
+     */
+    private static Measurement measure(boolean eventDriven, byte[] packedPixels) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        FakeSensorPort port = new FakeSensorPort(true);
+        port.setImageBuffer(packedPixels);
+        FingerprintSensor sensor = new FingerprintSensor(port, 115200);
+        sensor.setEventDrivenReceive(eventDriven);
+        sensor.open();
+        try {
+            Measurement measurement = new Measurement();
+            long cpuStart = threadBean.getCurrentThreadCpuTime();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < COMMAND_COUNT; i++) {
+                sensor.getTemplateCount(TIMEOUT);
+            }
+            measurement.commandLatencyNanos = (System.nanoTime() - start) / COMMAND_COUNT;
+
+            start = System.nanoTime();
+            measurement.image = sensor.downloadImage(TIMEOUT);
+            measurement.imageDownloadNanos = System.nanoTime() - start;
+
+            measurement.cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuStart;
+            return measurement;
+        } finally {
+            sensor.close();
+        }
+    }
+
+    /**
+     * Prints measured values of a receive mode.
+     *
+     * @param mode the name of the receive mode.
+     * @param measurement the measured values.
+     */
+    private static void print(String mode, Measurement measurement) {
+        System.out.printf("%-14s %14.2f ms %13.1f ms %11.1f ms%n", mode, measurement.commandLatencyNanos / 1e6,
+                measurement.imageDownloadNanos / 1e6, measurement.cpuNanos / 1e6);
+    }
+}
@@ -0,0 +1,51 @@
+package sk.upjs.zirro.fpm10sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Searches of the library of an emulated module.
+ */
+public class SearchTest {
+
+    private static final long TIMEOUT = 2000;
+
+    @Test
+    public void wholeLibraryIsSearched() {
+        FakeSensorPort port = new FakeSensorPort();
+        FingerprintSensor sensor = new FingerprintSensor(port, 57600);
+        sensor.setEventDrivenReceive(false);
+        sensor.open();
+        try {
+            int lastId = FakeSensorPort.LIBRARY_CAPACITY - 1;
+            byte[] template = new byte[512];
+            new Random(13).nextBytes(template);
+            port.setTemplate(lastId, template);
+
+            sensor.loadModel(lastId, FingerprintSensor.CHAR_BUFFER1, TIMEOUT);
+            assertEquals(lastId, sensor.search(TIMEOUT).getId());
+
+            port.setTemplate(lastId, null);
+            assertNull(sensor.search(TIMEOUT));
+        } finally {
+            sensor.close();
+        }
+    }
+
+    @Test
+    public void searchOfUnopenedSensorIsRejected() {
+        FingerprintSensor sensor = new FingerprintSensor(new FakeSensorPort(), 57600);
+        try {
+            sensor.search(TIMEOUT);
+            fail("Library has been searched.");
+        } catch (FingerprintSensorException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not open"));
+        }
+    }
+}